@@ -0,0 +1,66 @@
+package org.anodyneos.commons.net;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An <code>InputStream</code> reading the remaining content of a
+ * <code>ByteBuffer</code>, which may be a memory mapped file.  Reads copy
+ * directly from the buffer into the caller's array.  The stream owns the
+ * buffer's position and mark.  This class is not thread safe.
+ */
+final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+        buffer.mark();
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int n = Math.min(len, buffer.remaining());
+        if (n == 0) {
+            return -1;
+        }
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        buffer.mark();
+    }
+
+    @Override
+    public void reset() {
+        buffer.reset();
+    }
+
+}
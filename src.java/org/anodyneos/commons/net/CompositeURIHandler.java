@@ -0,0 +1,244 @@
+package org.anodyneos.commons.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A <code>URIHandler</code> that tries a list of layers in order, resolving
+ * each URI with the first layer that has the resource.  For example, to
+ * layer an overlay directory over a tenant root over defaults on the class
+ * path:
+ *
+ * <pre>
+ *      resolver.addProtocolHandler("res", new CompositeURIHandler(
+ *              new FileRootURIHandler(overlayDir),
+ *              new URLChangeRootURIHandler(tenantRootURL),
+ *              new ClassLoaderURIHandler()));
+ * </pre>
+ *
+ * <p>
+ * A layer has a resource if its <code>openStream()</code> returns a stream,
+ * since <code>toURL()</code> may return URLs for resources that do not
+ * exist.  The layer that served each URI is remembered, so later lookups of
+ * the URI go directly to that layer without trying the layers before it.
+ * If the remembered layer no longer has the resource when a stream is
+ * opened, all layers are tried again.  However, a resource added to an
+ * earlier layer is not seen, and <code>toURL()</code> and
+ * <code>openConnection()</code> continue to use the remembered layer, until
+ * the URI is invalidated with <code>invalidate()</code> or
+ * <code>invalidateAll()</code>.  URIs that no layer has are not remembered.
+ * </p><p>
+ * Counters record, per layer, the number of lookups served (hits) and the
+ * number of URIs tried but not found (misses), along with the number of
+ * lookups answered from remembered layers.
+ * </p><p>
+ * This class is thread safe if its layers are.
+ * </p>
+ */
+public class CompositeURIHandler implements URIHandler {
+
+    private static final Log log = LogFactory.getLog(CompositeURIHandler.class);
+
+    public static final int DEFAULT_MAX_MEMO_SIZE = 10000;
+
+    private final URIHandler[] layers;
+    private final ConcurrentHashMap<String, Integer> memo = new ConcurrentHashMap<String, Integer>();
+    private volatile int maxMemoSize = DEFAULT_MAX_MEMO_SIZE;
+    private final AtomicLongArray hitCounts;
+    private final AtomicLongArray missCounts;
+    private final AtomicLong memoHitCount = new AtomicLong();
+
+    public CompositeURIHandler(URIHandler... layers) {
+        if (layers.length == 0) {
+            throw new IllegalArgumentException("At least one layer is required");
+        }
+        this.layers = layers.clone();
+        this.hitCounts = new AtomicLongArray(layers.length);
+        this.missCounts = new AtomicLongArray(layers.length);
+    }
+
+    public CompositeURIHandler(List<? extends URIHandler> layers) {
+        this(layers.toArray(new URIHandler[layers.size()]));
+    }
+
+    /**
+     *  Returns a URLConnection from the first layer having the resource, or
+     *  null if no layer has it.
+     *
+     *  @return The URLConnection or null.
+     *  @throws IOException if an IOException occurs
+     */
+    @Override
+    public URLConnection openConnection(URI uri) throws IOException {
+        int layer = findLayer(uri);
+        return layer == -1 ? null : layers[layer].openConnection(uri);
+    }
+
+    /**
+     *  Returns an InputStream from the first layer having the resource, or
+     *  null if no layer has it.
+     *
+     *  @return The InputStream or null.
+     *  @throws IOException if an IOException occurs
+     */
+    @Override
+    public InputStream openStream(URI uri) throws IOException {
+        String key = uri.toString();
+        Integer memoized = memo.get(key);
+        if (null != memoized) {
+            InputStream in = layers[memoized].openStream(uri);
+            if (null != in) {
+                memoHitCount.incrementAndGet();
+                hitCounts.incrementAndGet(memoized);
+                return in;
+            }
+            // no longer there
+            memo.remove(key, memoized);
+        }
+        for (int i = 0; i < layers.length; i++) {
+            InputStream in = layers[i].openStream(uri);
+            if (null != in) {
+                served(key, i);
+                return in;
+            }
+            missCounts.incrementAndGet(i);
+        }
+        return null;
+    }
+
+    /**
+     *  Returns a URL from the first layer having the resource, or null if no
+     *  layer has it.  Unlike most handlers, the returned URL is known to have
+     *  pointed to an existing resource.  Layers that fail with an
+     *  IOException are skipped.
+     *
+     *  @return The URL or null.
+     */
+    @Override
+    public URL toURL(URI uri) {
+        try {
+            int layer = findLayer(uri);
+            return layer == -1 ? null : layers[layer].toURL(uri);
+        } catch (IOException e) {
+            log.warn("Returning null; unable to resolve URI: " + uri, e);
+            return null;
+        }
+    }
+
+    /**
+     *  Forgets the layer that served the given URI.
+     */
+    public void invalidate(URI uri) {
+        memo.remove(uri.toString());
+    }
+
+    /**
+     *  Forgets the layers that served all URIs, for example after resources
+     *  are added to a layer.
+     */
+    public void invalidateAll() {
+        memo.clear();
+    }
+
+    /**
+     * @return The index of the layer having the resource, or -1.
+     */
+    private int findLayer(URI uri) throws IOException {
+        String key = uri.toString();
+        Integer memoized = memo.get(key);
+        if (null != memoized) {
+            memoHitCount.incrementAndGet();
+            hitCounts.incrementAndGet(memoized);
+            return memoized;
+        }
+        for (int i = 0; i < layers.length; i++) {
+            InputStream in = layers[i].openStream(uri);
+            if (null != in) {
+                try { in.close(); } catch (IOException e) { /* no op */ }
+                served(key, i);
+                return i;
+            }
+            missCounts.incrementAndGet(i);
+        }
+        return -1;
+    }
+
+    private void served(String key, int layer) {
+        hitCounts.incrementAndGet(layer);
+        if (memo.size() >= maxMemoSize) {
+            // rather than track recency, start over
+            memo.clear();
+        }
+        memo.put(key, layer);
+    }
+
+    /**
+     * @param maxMemoSize The maximum number of URIs whose layer is
+     *        remembered.  When the limit is reached, all are forgotten.
+     */
+    public void setMaxMemoSize(int maxMemoSize) {
+        this.maxMemoSize = maxMemoSize;
+    }
+
+    public int getMaxMemoSize() {
+        return maxMemoSize;
+    }
+
+    public int getMemoSize() {
+        return memo.size();
+    }
+
+    public List<URIHandler> getLayers() {
+        return Arrays.asList(layers.clone());
+    }
+
+    public int getLayerCount() {
+        return layers.length;
+    }
+
+    /**
+     * @return The number of lookups the layer served, including lookups
+     *         answered from remembered layers.
+     */
+    public long getLayerHitCount(int layer) {
+        return hitCounts.get(layer);
+    }
+
+    /**
+     * @return The number of URIs the layer was tried for but did not have.
+     */
+    public long getLayerMissCount(int layer) {
+        return missCounts.get(layer);
+    }
+
+    /**
+     * @return The number of lookups answered by a remembered layer without
+     *         trying the layers before it.
+     */
+    public long getMemoHitCount() {
+        return memoHitCount.get();
+    }
+
+    /**
+     *  Resets all counters to zero.
+     */
+    public void resetStatistics() {
+        for (int i = 0; i < layers.length; i++) {
+            hitCounts.set(i, 0);
+            missCounts.set(i, 0);
+        }
+        memoHitCount.set(0);
+    }
+
+}
@@ -0,0 +1,212 @@
+package org.anodyneos.commons.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * This class resolves non-Opaque URIs of the form
+ * "<i>file</i>:/path/to/Resource" to files below a root directory, in the
+ * manner of <code>URLChangeRootURIHandler</code> with a <code>file:</code>
+ * root URL.  Rather than reading through the <code>URLConnection</code>
+ * stack, <code>openStream()</code> opens files with a
+ * <code>FileChannel</code>: files of at least <code>mapThreshold</code> bytes
+ * are memory mapped, and smaller files are read with a single read.  Either
+ * way the file is closed before the stream is returned, and the stream reads
+ * directly from the resulting <code>ByteBuffer</code>.
+ * <code>UnifiedResolver</code> reads through <code>openStream()</code> when
+ * resolving entities and <code>URIResolver</code> requests for URIs handled
+ * by this class, unless the XML Catalog maps the URI or <code>file</code>
+ * resources are cached.
+ *
+ * URI paths are normalized lexically, and paths containing ".." segments
+ * that would leave the root are not resolved.  Paths are normalized before
+ * they are decoded, and paths with encoded dot segments, separators or NUL
+ * characters are not resolved.  Symbolic links below the root
+ * are followed.  The query and fragment of the URI are disregarded.
+ *
+ * NOTE: The scheme "file" is only an example. This class is not scheme
+ * specific and users of this class may use another scheme name.
+ */
+public class FileRootURIHandler extends AbstractURIHandler implements URIHandler {
+
+    public static final long DEFAULT_MAP_THRESHOLD = 256 * 1024;
+
+    private volatile File root;
+    private volatile long mapThreshold = DEFAULT_MAP_THRESHOLD;
+
+    public FileRootURIHandler() {
+        // expect future call to setRoot
+    }
+
+    public FileRootURIHandler(File root) {
+        setRoot(root);
+    }
+
+    /**
+     *  Returns the file for the given URI or null if the URI cannot be
+     *  resolved.  Note: there is no guarantee that the file exists.
+     *
+     *  @return The File or null.
+     */
+    public File toFile(URI uri) {
+        File root = this.root;
+        if (null == root || uri.isOpaque()) {
+            return null;
+        }
+        String rawPath = uri.getRawPath();
+        if (null == rawPath || ! rawPath.startsWith("/")) {
+            return null;
+        }
+        // normalize before decoding so that encoded dot segments and
+        // separators cannot leave the root
+        String relative = URIPaths.normalizeRawRelative(rawPath);
+        if (null == relative) {
+            return null;
+        }
+        if (relative.indexOf('%') != -1) {
+            try {
+                relative = new URI("/" + relative).getPath().substring(1);
+            } catch (URISyntaxException e) {
+                return null;
+            }
+            if (relative.indexOf('\0') != -1) {
+                return null;
+            }
+        }
+        return relative.length() == 0 ? root : new File(root, relative);
+    }
+
+    /**
+     *  Returns a URL for the given URI or null if the URI cannot be resolved.
+     *
+     *  @return The URL or null.
+     */
+    @Override
+    public URL toURL(URI uri) {
+        File file = toFile(uri);
+        if (null == file) {
+            return null;
+        }
+        try {
+            return file.toURI().toURL();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     *  Returns an InputStream for the given URI or null if the URI cannot be
+     *  resolved or the file does not exist.
+     *
+     *  @return The InputStream or null.
+     *  @throws IOException if an IOException occurs
+     */
+    @Override
+    public InputStream openStream(URI uri) throws IOException {
+        ByteBuffer buffer = openBuffer(uri);
+        return null == buffer ? null : new ByteBufferInputStream(buffer);
+    }
+
+    /**
+     *  Returns a Source for the given URI or null if the URI cannot be
+     *  resolved or the file does not exist.  The Source's systemId is the
+     *  file's URL.
+     *
+     *  @return The Source or null.
+     *  @throws IOException if an IOException occurs
+     */
+    public Source openSource(URI uri) throws IOException {
+        File file = toFile(uri);
+        if (null == file) {
+            return null;
+        }
+        ByteBuffer buffer = read(file);
+        if (null == buffer) {
+            return null;
+        }
+        return new StreamSource(new ByteBufferInputStream(buffer), file.toURI().toString());
+    }
+
+    /**
+     *  Returns the content of the file for the given URI as a read only
+     *  buffer, or null if the URI cannot be resolved or the file does not
+     *  exist.  Files of at least <code>mapThreshold</code> bytes are memory
+     *  mapped and are not copied.
+     *
+     *  @return The ByteBuffer or null.
+     *  @throws IOException if an IOException occurs
+     */
+    public ByteBuffer openBuffer(URI uri) throws IOException {
+        File file = toFile(uri);
+        return null == file ? null : read(file);
+    }
+
+    private ByteBuffer read(File file) throws IOException {
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            // also thrown for directories
+            return null;
+        }
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                // neither a heap nor a mapped ByteBuffer can hold the file
+                throw new IOException("File too large to buffer (" + size + " bytes): " + file);
+            } else if (size >= mapThreshold) {
+                // the mapping remains valid after the channel is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // read until full; the file may have been truncated
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } finally {
+            in.close();
+        }
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @param root The root directory.  Relative paths are made absolute.
+     */
+    public void setRoot(File root) {
+        this.root = root.getAbsoluteFile();
+    }
+
+    /**
+     * @param mapThreshold The minimum size in bytes of files that are memory
+     *        mapped rather than read.  Mapping has a fixed cost and holds
+     *        virtual memory until the buffer is garbage collected, so only
+     *        large files should be mapped.  Files larger than
+     *        <code>Integer.MAX_VALUE</code> bytes cannot be buffered and
+     *        fail with an IOException.
+     */
+    public void setMapThreshold(long mapThreshold) {
+        this.mapThreshold = mapThreshold;
+    }
+
+    public long getMapThreshold() {
+        return mapThreshold;
+    }
+
+}
@@ -0,0 +1,411 @@
+package org.anodyneos.commons.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class's toURL method resolves non-Opaque URIs of the form
+ * "<i>classpath</i>:///com/example/package/Resource" to URLs for the given
+ * ClassLoader resource, as <code>ClassLoaderURIHandler</code> does, but
+ * answers lookups below a configured set of resource path prefixes from an
+ * index rather than by searching the class path.
+ * <p>
+ * The index is built on first use by locating each prefix with
+ * <code>ClassLoader.getResources()</code> and listing the jar file entries
+ * and directories found there; when a resource is present in several
+ * locations, the first found wins, as with <code>getResource()</code>.
+ * Both hits and misses below an indexed prefix are then answered with a
+ * single map lookup, and <code>openStream()</code> reads jar entries directly
+ * from a <code>JarFile</code> that is opened once and kept open.  Paths that
+ * are not below an indexed prefix are resolved with
+ * <code>ClassLoader.getResource()</code>.
+ * </p><p>
+ * The index is not updated when the class path changes; call
+ * <code>reindex()</code> to rebuild it.  Jar files are only found if they
+ * contain directory entries for the prefixes, as most jar files do.
+ * </p>
+ *
+ * NOTE: The scheme "classpath" is only an example. This class is not scheme
+ * specific and users of this class may use another scheme name.
+ */
+public class IndexedClassLoaderURIHandler extends AbstractURIHandler implements URIHandler {
+
+    private static final Log log = LogFactory.getLog(IndexedClassLoaderURIHandler.class);
+
+    private final ClassLoader classLoader;
+    private final String[] prefixes;
+    private volatile Map<String, Entry> index = null;
+    private final List<JarRoot> jarRoots = new ArrayList<JarRoot>();
+
+    /**
+     * @param cl The ClassLoader.
+     * @param prefixes The resource path prefixes to index, such as
+     *        "com/example/xsl/".  A trailing "/" is added if missing.
+     */
+    public IndexedClassLoaderURIHandler(ClassLoader cl, String... prefixes) {
+        this.classLoader = cl;
+        Set<String> set = new LinkedHashSet<String>();
+        for (String prefix : prefixes) {
+            while (prefix.startsWith("/")) {
+                prefix = prefix.substring(1);
+            }
+            set.add(prefix.endsWith("/") ? prefix : prefix + "/");
+        }
+        this.prefixes = set.toArray(new String[set.size()]);
+    }
+
+    /**
+     *  Returns a URL for the given URI or null if the URI cannot be resolved.
+     *
+     *  @return The URL or null.
+     */
+    @Override
+    public URL toURL(URI uri) {
+        String path = toPath(uri);
+        if (null == path) {
+            return null;
+        } else if (! isIndexed(path)) {
+            return classLoader.getResource(path);
+        }
+        Entry entry = getIndex().get(path);
+        return null == entry ? null : entry.toURL();
+    }
+
+    /**
+     *  Returns an InputStream for the given URI or null if the URI cannot be
+     *  resolved.
+     *
+     *  @return The InputStream or null.
+     *  @throws IOException if an IOException occurs
+     */
+    @Override
+    public InputStream openStream(URI uri) throws IOException {
+        String path = toPath(uri);
+        if (null == path) {
+            return null;
+        } else if (! isIndexed(path)) {
+            return super.openStream(uri);
+        }
+        Map<String, Entry> map = getIndex();
+        while (true) {
+            Entry entry = map.get(path);
+            if (null == entry) {
+                return null;
+            }
+            InputStream in = entry.openStream();
+            if (null != in) {
+                return in;
+            }
+            // the entry's jar file may have been closed by a concurrent
+            // close(), and is reopened on retry, or discarded by reindex()
+            Map<String, Entry> current = getIndex();
+            if (current == map) {
+                return entry.openStream();
+            }
+            map = current;
+        }
+    }
+
+    /**
+     *  Discards the index, closing any open jar files.  The index is rebuilt
+     *  on next use.  Entries of the discarded index do not reopen their jar
+     *  files.
+     */
+    public synchronized void reindex() {
+        index = null;
+        for (JarRoot root : jarRoots) {
+            root.discard();
+        }
+        jarRoots.clear();
+    }
+
+    /**
+     *  Closes any open jar files, causing streams still being read from them
+     *  to fail.  Jar files are reopened if needed.
+     */
+    public synchronized void close() {
+        for (JarRoot root : jarRoots) {
+            root.close();
+        }
+    }
+
+    /**
+     * @return The number of jar files currently held open.
+     */
+    public synchronized int getOpenJarFileCount() {
+        int count = 0;
+        for (JarRoot root : jarRoots) {
+            if (root.isOpen()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of indexed resources.
+     */
+    public int getIndexSize() {
+        return getIndex().size();
+    }
+
+    public ClassLoader getClassLoader() { return classLoader; }
+
+    public String[] getPrefixes() { return prefixes.clone(); }
+
+    private String toPath(URI uri) {
+        if (uri.isOpaque()) {
+            log.warn("Returning null; opaque URI's (scheme-specific part does not begin with a slash) are invalid: "
+                    + uri.toString());
+            return null;
+        }
+        String path = uri.getPath();
+        if (! path.startsWith("/")) {
+            log.warn("Returning null; path for URI is not absolute: " + uri.toString());
+            return null;
+        }
+        return path.substring(1);
+    }
+
+    private boolean isIndexed(String path) {
+        for (String prefix : prefixes) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, Entry> getIndex() {
+        Map<String, Entry> map = index;
+        if (null == map) {
+            synchronized (this) {
+                map = index;
+                if (null == map) {
+                    index = map = buildIndex();
+                }
+            }
+        }
+        return map;
+    }
+
+    private Map<String, Entry> buildIndex() {
+        long start = System.currentTimeMillis();
+        Map<String, Entry> map = new HashMap<String, Entry>();
+        Map<String, JarRoot> jars = new HashMap<String, JarRoot>();
+        for (String prefix : prefixes) {
+            try {
+                for (Enumeration<URL> e = classLoader.getResources(prefix); e.hasMoreElements();) {
+                    URL url = e.nextElement();
+                    if ("jar".equals(url.getProtocol())) {
+                        indexJar(map, jars, url, prefix);
+                    } else if ("file".equals(url.getProtocol())) {
+                        indexDirectory(map, url, prefix);
+                    } else {
+                        log.warn("Unable to index " + url + "; only jar and file resources are supported");
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Unable to index resources below " + prefix, e);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Indexed " + map.size() + " resources below " + Arrays.asList(prefixes)
+                    + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return map;
+    }
+
+    private void indexJar(Map<String, Entry> map, Map<String, JarRoot> jars, URL url, String prefix)
+    throws IOException {
+        String spec = url.toExternalForm();
+        int sep = spec.indexOf("!/");
+        if (sep == -1) {
+            return;
+        }
+        String jarURL = spec.substring(4, sep);
+        JarRoot root = jars.get(jarURL);
+        if (null == root) {
+            File file;
+            try {
+                file = new File(new URI(jarURL));
+            } catch (URISyntaxException e) {
+                file = new File(URLDecoder.decode(new URL(jarURL).getPath(), "UTF-8"));
+            } catch (IllegalArgumentException e) {
+                log.warn("Unable to index " + url + "; not a local jar file");
+                return;
+            }
+            root = new JarRoot(file, spec.substring(0, sep + 2));
+            jars.put(jarURL, root);
+            jarRoots.add(root);
+        }
+        JarFile jar = root.getJarFile();
+        for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+            JarEntry entry = e.nextElement();
+            String name = entry.getName();
+            if (! entry.isDirectory() && name.startsWith(prefix) && ! map.containsKey(name)) {
+                map.put(name, new Entry(root, name));
+            }
+        }
+    }
+
+    private void indexDirectory(Map<String, Entry> map, URL url, String prefix) {
+        File dir;
+        try {
+            dir = new File(url.toURI());
+        } catch (URISyntaxException e) {
+            log.warn("Unable to index " + url, e);
+            return;
+        }
+        indexDirectory(map, dir, prefix);
+    }
+
+    private void indexDirectory(Map<String, Entry> map, File dir, String path) {
+        File[] files = dir.listFiles();
+        if (null == files) {
+            return;
+        }
+        for (File file : files) {
+            String name = path + file.getName();
+            if (file.isDirectory()) {
+                indexDirectory(map, file, name + "/");
+            } else if (! map.containsKey(name)) {
+                map.put(name, new Entry(file, name));
+            }
+        }
+    }
+
+    /**
+     *  An indexed resource: either an entry in a jar file or a file.
+     */
+    private static final class Entry {
+        private final JarRoot jarRoot;
+        private final File file;
+        private final String name;
+        private volatile URL url;
+
+        Entry(JarRoot jarRoot, String name) {
+            this.jarRoot = jarRoot;
+            this.file = null;
+            this.name = name;
+        }
+
+        Entry(File file, String name) {
+            this.jarRoot = null;
+            this.file = file;
+            this.name = name;
+        }
+
+        URL toURL() {
+            URL u = url;
+            if (null == u) {
+                try {
+                    if (null == jarRoot) {
+                        u = file.toURI().toURL();
+                    } else {
+                        u = new URL(jarRoot.urlPrefix + new URI(null, null, name, null).getRawPath());
+                    }
+                } catch (MalformedURLException e) {
+                    return null;
+                } catch (URISyntaxException e) {
+                    return null;
+                }
+                url = u;
+            }
+            return u;
+        }
+
+        InputStream openStream() throws IOException {
+            if (null == jarRoot) {
+                try {
+                    return new FileInputStream(file);
+                } catch (FileNotFoundException e) {
+                    return null;
+                }
+            }
+            JarFile jar = jarRoot.getJarFile();
+            if (null == jar) {
+                return null;
+            }
+            try {
+                JarEntry entry = jar.getJarEntry(name);
+                return null == entry ? null : jar.getInputStream(entry);
+            } catch (IllegalStateException e) {
+                // closed by a concurrent close() or reindex()
+                return null;
+            }
+        }
+    }
+
+    /**
+     *  A jar file containing indexed entries, opened on demand and kept open
+     *  until discarded.
+     */
+    private static final class JarRoot {
+        private final File file;
+        private final String urlPrefix;
+        private JarFile jarFile;
+        private boolean discarded;
+
+        JarRoot(File file, String urlPrefix) {
+            this.file = file;
+            this.urlPrefix = urlPrefix;
+        }
+
+        /**
+         * @return The open jar file, or null if the root was discarded.
+         */
+        synchronized JarFile getJarFile() throws IOException {
+            if (discarded) {
+                return null;
+            } else if (null == jarFile) {
+                jarFile = new JarFile(file);
+            }
+            return jarFile;
+        }
+
+        /**
+         *  Closes the jar file, which is reopened on next use.
+         */
+        synchronized void close() {
+            if (null != jarFile) {
+                try { jarFile.close(); } catch (IOException e) { /* no op */ }
+                jarFile = null;
+            }
+        }
+
+        /**
+         *  Closes the jar file for good, once the root is no longer tracked.
+         */
+        synchronized void discard() {
+            discarded = true;
+            close();
+        }
+
+        synchronized boolean isOpen() {
+            return null != jarFile;
+        }
+    }
+
+}
@@ -0,0 +1,283 @@
+package org.anodyneos.commons.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A <code>URIHelper</code> that routes URIs to <code>URIHandler</code>s by
+ * scheme, authority, and the longest matching path prefix.  It is also a
+ * <code>URIHandler</code>, so it may be registered with a
+ * <code>UnifiedResolver</code> for a scheme.  For example:
+ *
+ * <pre>
+ *      PrefixRoutingURIHelper helper = new PrefixRoutingURIHelper();
+ *      helper.addRoute("res", null, "/", defaultHandler, false);
+ *      helper.addRoute("res", null, "/tenants/acme", acmeHandler, true);
+ *      resolver.addProtocolHandler("res", helper);
+ * </pre>
+ *
+ * routes "res:/tenants/acme/xsl/page.xsl" to <code>acmeHandler</code> as
+ * "res:/xsl/page.xsl", and "res:/tenants/other/xsl/page.xsl" to
+ * <code>defaultHandler</code> unchanged.
+ * <p>
+ * Routes are held in a trie keyed by scheme, then authority, then path
+ * segment, so the cost of a lookup depends on the number of segments in the
+ * URI's path rather than on the number of routes.  Path prefixes match whole
+ * segments: "/tenants/acme" matches "/tenants/acme/x" but not
+ * "/tenants/acmex".  Routes with a null authority match any authority, and
+ * are used only when no route for the URI's authority matches.  Paths are
+ * matched in their encoded form after removing "." and ".." segments; URIs
+ * whose path leaves the root are not routed.  Schemes are matched without
+ * regard to case.
+ * </p><p>
+ * This class is thread safe.  Lookups do not lock, so routes may be added
+ * and removed while URIs are being resolved.
+ * </p>
+ */
+public class PrefixRoutingURIHelper extends URIHelper implements URIHandler {
+
+    // scheme -> authority -> path segments; the null authority is stored as ""
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Node>> routes =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, Node>>();
+
+    private static final String ANY_AUTHORITY = "";
+
+    public PrefixRoutingURIHelper() {
+        // super();
+    }
+
+    /**
+     *  Adds or replaces a route.
+     *
+     *  @param scheme The URI scheme.
+     *  @param authority The URI authority, or null to match any authority.
+     *  @param pathPrefix The path prefix, such as "/tenants/acme", or "/" to
+     *         match every path.
+     *  @param uriHandler The handler for matching URIs.
+     *  @param stripPrefix True to remove the prefix from the path of URIs
+     *         passed to the handler.
+     */
+    public synchronized void addRoute(String scheme, String authority, String pathPrefix,
+            URIHandler uriHandler, boolean stripPrefix) {
+        String prefix = toRawPrefix(pathPrefix);
+        Node node = getAuthorityNode(scheme, authority, true);
+        for (int i = 0; i < prefix.length();) {
+            int end = nextSegmentEnd(prefix, i);
+            String segment = prefix.substring(i, end);
+            Node child = node.children.get(segment);
+            if (null == child) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+            i = end + 1;
+        }
+        node.handler = stripPrefix && prefix.length() > 0 ? new StripPrefixHandler(uriHandler, prefix.length() + 1)
+                : uriHandler;
+    }
+
+    /**
+     *  Removes the route with exactly the given scheme, authority, and path
+     *  prefix.  Routes with longer prefixes are not affected.
+     *
+     *  @return True if a route was removed.
+     */
+    public synchronized boolean removeRoute(String scheme, String authority, String pathPrefix) {
+        String prefix = toRawPrefix(pathPrefix);
+        Node node = getAuthorityNode(scheme, authority, false);
+        for (int i = 0; null != node && i < prefix.length();) {
+            int end = nextSegmentEnd(prefix, i);
+            node = node.children.get(prefix.substring(i, end));
+            i = end + 1;
+        }
+        if (null == node || null == node.handler) {
+            return false;
+        }
+        // empty nodes are left in place; they do not affect lookups
+        node.handler = null;
+        return true;
+    }
+
+    /**
+     *  Returns the handler of the route matching the given URI, or null if no
+     *  route matches.  If the route strips its prefix, the returned handler
+     *  does so before delegating to the route's handler.
+     *
+     *  @return The URIHandler or null.
+     */
+    @Override
+    protected URIHandler getURIHandler(URI uri) {
+        String scheme = uri.getScheme();
+        if (null == scheme) {
+            return null;
+        }
+        ConcurrentHashMap<String, Node> authorities = routes.get(scheme.toLowerCase());
+        if (null == authorities) {
+            return null;
+        }
+        String path = toRawPath(uri);
+        if (null == path) {
+            return null;
+        }
+        String authority = uri.getRawAuthority();
+        if (null != authority) {
+            URIHandler handler = match(authorities.get(authority), path);
+            if (null != handler) {
+                return handler;
+            }
+        }
+        return match(authorities.get(ANY_AUTHORITY), path);
+    }
+
+    /**
+     *  Walks the trie along the path's segments.
+     *
+     *  @return The handler of the deepest matching node having one.
+     */
+    private static URIHandler match(Node node, String path) {
+        if (null == node) {
+            return null;
+        }
+        URIHandler handler = node.handler;
+        for (int i = 0; i < path.length();) {
+            int end = nextSegmentEnd(path, i);
+            node = node.children.get(path.substring(i, end));
+            if (null == node) {
+                break;
+            }
+            URIHandler h = node.handler;
+            if (null != h) {
+                handler = h;
+            }
+            i = end + 1;
+        }
+        return handler;
+    }
+
+    private Node getAuthorityNode(String scheme, String authority, boolean create) {
+        String key = scheme.toLowerCase();
+        ConcurrentHashMap<String, Node> authorities = routes.get(key);
+        if (null == authorities) {
+            if (! create) {
+                return null;
+            }
+            authorities = new ConcurrentHashMap<String, Node>();
+            routes.put(key, authorities);
+        }
+        if (null == authority) {
+            authority = ANY_AUTHORITY;
+        }
+        Node node = authorities.get(authority);
+        if (null == node && create) {
+            node = new Node();
+            authorities.put(authority, node);
+        }
+        return node;
+    }
+
+    private static int nextSegmentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end == -1 ? path.length() : end;
+    }
+
+    /**
+     * @return The normalized raw path without its leading "/", or null if the
+     *         path leaves the root.
+     */
+    private static String toRawPath(URI uri) {
+        String path = uri.getRawPath();
+        if (null == path || path.length() == 0) {
+            // opaque or empty; only routes for "/" match
+            return "";
+        } else if (! path.startsWith("/")) {
+            return null;
+        }
+        return URIPaths.normalizeRawRelative(path);
+    }
+
+    private static String toRawPrefix(String pathPrefix) {
+        if (! pathPrefix.startsWith("/")) {
+            throw new IllegalArgumentException("Path prefix must begin with '/': " + pathPrefix);
+        }
+        try {
+            String prefix = URIPaths.normalizeRawRelative(new URI(null, null, pathPrefix, null).getRawPath());
+            if (null == prefix) {
+                throw new IllegalArgumentException("Invalid path prefix: " + pathPrefix);
+            }
+            return prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid path prefix: " + pathPrefix, e);
+        }
+    }
+
+    private static final class Node {
+        private final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>(4);
+        private volatile URIHandler handler;
+    }
+
+    /**
+     *  Removes a route's path prefix from URIs before delegating.
+     */
+    private static final class StripPrefixHandler implements URIHandler {
+        private final URIHandler delegate;
+        // the length of the prefix and the "/" following it
+        private final int prefixLength;
+
+        StripPrefixHandler(URIHandler delegate, int prefixLength) {
+            this.delegate = delegate;
+            this.prefixLength = prefixLength;
+        }
+
+        @Override
+        public URLConnection openConnection(URI uri) throws IOException {
+            URI stripped = strip(uri);
+            return null == stripped ? null : delegate.openConnection(stripped);
+        }
+
+        @Override
+        public InputStream openStream(URI uri) throws IOException {
+            URI stripped = strip(uri);
+            return null == stripped ? null : delegate.openStream(stripped);
+        }
+
+        @Override
+        public URL toURL(URI uri) {
+            URI stripped = strip(uri);
+            return null == stripped ? null : delegate.toURL(stripped);
+        }
+
+        private URI strip(URI uri) {
+            String path = toRawPath(uri);
+            if (null == path) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder(uri.getScheme()).append(':');
+            if (null != uri.getRawAuthority()) {
+                sb.append("//").append(uri.getRawAuthority());
+            }
+            // the path matched the prefix, so is the prefix, optionally
+            // followed by "/" and more segments
+            sb.append('/');
+            if (path.length() > prefixLength) {
+                sb.append(path, prefixLength, path.length());
+            }
+            if (null != uri.getRawQuery()) {
+                sb.append('?').append(uri.getRawQuery());
+            }
+            if (null != uri.getRawFragment()) {
+                sb.append('#').append(uri.getRawFragment());
+            }
+            try {
+                return new URI(sb.toString());
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+    }
+
+}
@@ -1,10 +1,22 @@
 package org.anodyneos.commons.net;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * <code>URIHelper</code> s match <code>URI</code> s to <code>URIHandler</code>
@@ -13,15 +25,36 @@ import java.net.URLConnection;
  * appropriate name would be <code>URIResolver</code>, but that name is
  * already in use.
  *
+ * <p>
+ * The asynchronous methods run the corresponding blocking methods on the
+ * helper's <code>Executor</code>, so subclasses that override the blocking
+ * methods are honored.
+ * </p>
+ *
  * @see URI
  * @see URIHandler
  */
 public abstract class URIHelper {
 
+    private volatile Executor executor = null;
+
     protected URIHelper() {
         // super();
     }
 
+    /**
+     *  Sets the <code>Executor</code> used by the asynchronous methods.
+     *
+     *  @param executor The Executor, or null (the default) to use a shared
+     *         pool of daemon threads.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    public Executor getExecutor() {
+        return executor;
+    }
+
     /**
      *  Returns a URIHandler that should be used to resolve the given URI or
      *  null if no available URIHandler is suitable.
@@ -68,7 +101,127 @@ public abstract class URIHelper {
      *  @return The URL or null.
      */
     public URL toURL(URI uri) {
-        return getURIHandler(uri).toURL(uri);
+        URIHandler uriHandler = getURIHandler(uri);
+        if (null == uriHandler) {
+            return null;
+        }
+        return uriHandler.toURL(uri);
+    }
+
+    /**
+     *  Asynchronously returns an InputStream for the given URI, or null if the
+     *  URI cannot be resolved.
+     *
+     *  @see #openStream(URI)
+     */
+    public Future<InputStream> openStreamAsync(final URI uri) {
+        return submit(new Callable<InputStream>() {
+            @Override
+            public InputStream call() throws IOException {
+                return openStream(uri);
+            }
+        });
+    }
+
+    /**
+     *  Asynchronously returns a URLConnection for the given URI, or null if
+     *  the URI cannot be resolved.
+     *
+     *  @see #openConnection(URI)
+     */
+    public Future<URLConnection> openConnectionAsync(final URI uri) {
+        return submit(new Callable<URLConnection>() {
+            @Override
+            public URLConnection call() throws IOException {
+                return openConnection(uri);
+            }
+        });
+    }
+
+    /**
+     *  Asynchronously returns a URL for the given URI, or null if the URI
+     *  cannot be resolved.
+     *
+     *  @see #toURL(URI)
+     */
+    public Future<URL> toURLAsync(final URI uri) {
+        return submit(new Callable<URL>() {
+            @Override
+            public URL call() {
+                return toURL(uri);
+            }
+        });
+    }
+
+    /**
+     *  Resolves and reads each of the given URIs concurrently.  The content
+     *  of each resource is read fully into memory on the
+     *  <code>Executor</code>, so the returned streams may be consumed without
+     *  further I/O, in any order.  The result of a URI that cannot be resolved
+     *  is null; the result of a URI that cannot be read is an
+     *  <code>ExecutionException</code> thrown from <code>Future.get()</code>.
+     *
+     *  <pre>
+     *      Map&lt;URI, Future&lt;InputStream&gt;&gt; docs = resolver.prefetch(uris);
+     *      // ... other work ...
+     *      InputStream in = docs.get(uri).get();
+     *  </pre>
+     *
+     *  @return The results, in the iteration order of <code>uris</code>.
+     */
+    public Map<URI, Future<InputStream>> prefetch(Collection<URI> uris) {
+        Map<URI, Future<InputStream>> results = new LinkedHashMap<URI, Future<InputStream>>();
+        for (final URI uri : uris) {
+            if (results.containsKey(uri)) {
+                continue;
+            }
+            results.put(uri, submit(new Callable<InputStream>() {
+                @Override
+                public InputStream call() throws IOException {
+                    InputStream in = openStream(uri);
+                    if (null == in) {
+                        return null;
+                    }
+                    try {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        byte[] buf = new byte[8192];
+                        int n;
+                        while ((n = in.read(buf)) != -1) {
+                            out.write(buf, 0, n);
+                        }
+                        return new ByteArrayInputStream(out.toByteArray());
+                    } finally {
+                        in.close();
+                    }
+                }
+            }));
+        }
+        return results;
+    }
+
+    private <T> Future<T> submit(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        Executor e = executor;
+        (null == e ? DefaultExecutor.INSTANCE : e).execute(task);
+        return task;
+    }
+
+    /**
+     *  The shared pool used when no Executor is set, created on first use.
+     *  Resolution is usually I/O bound, so the pool is larger than the number
+     *  of processors.
+     */
+    private static final class DefaultExecutor {
+        private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+                Math.max(4, 2 * Runtime.getRuntime().availableProcessors()),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "URIHelper");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
     }
 
 }
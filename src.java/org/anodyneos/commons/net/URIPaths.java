@@ -0,0 +1,153 @@
+package org.anodyneos.commons.net;
+
+/**
+ * Path utilities for <code>URIHandler</code>s that map URI paths below a
+ * root.  Paths are normalized in a single pass without building intermediate
+ * <code>URI</code>s, and a path that would escape the root is rejected
+ * during normalization, so normalized paths are always contained in the
+ * root.  Encoded paths, which are later decoded when opened, must be
+ * normalized with <code>normalizeRawRelative()</code> so that encoded dot
+ * segments and separators cannot escape the root.
+ */
+final class URIPaths {
+
+    private URIPaths() {
+        // static methods only
+    }
+
+    /**
+     *  Normalizes an encoded (raw) absolute URI path as
+     *  <code>normalizeRelative()</code> does, but rejects paths having a
+     *  segment that decodes to "." or "..", or having an encoded "/" or "\",
+     *  since these would be interpreted as dot segments or separators once
+     *  the path is decoded.
+     *
+     *  @param rawPath An encoded path beginning with "/".
+     *  @return The normalized encoded path relative to the root, without a
+     *          leading "/", or null if the path could leave the root.
+     */
+    static String normalizeRawRelative(String rawPath) {
+        if (rawPath.indexOf('%') != -1 && hasEncodedTraversal(rawPath)) {
+            return null;
+        }
+        return normalizeRelative(rawPath);
+    }
+
+    /**
+     * @return True if a segment of the raw path decodes to "." or "..", or
+     *         the path contains an encoded "/" or "\".
+     */
+    private static boolean hasEncodedTraversal(String rawPath) {
+        int len = rawPath.length();
+        int dots = 0;
+        boolean encoded = false;
+        boolean other = false;
+        for (int i = 0; i <= len; i++) {
+            char c = i < len ? rawPath.charAt(i) : '/';
+            if (c == '/') {
+                if (encoded && ! other && (dots == 1 || dots == 2)) {
+                    return true;
+                }
+                dots = 0;
+                encoded = false;
+                other = false;
+            } else if (c == '.') {
+                dots++;
+            } else if (c == '%' && i + 2 < len) {
+                char c1 = rawPath.charAt(i + 1);
+                char c2 = Character.toUpperCase(rawPath.charAt(i + 2));
+                if (c1 == '2' && c2 == 'E') {
+                    dots++;
+                    encoded = true;
+                } else if ((c1 == '2' && c2 == 'F') || (c1 == '5' && c2 == 'C')) {
+                    return true;
+                } else {
+                    other = true;
+                }
+                i += 2;
+            } else {
+                other = true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  Normalizes the part of an absolute URI path following its leading "/",
+     *  removing empty and "." segments and resolving ".." segments.  A
+     *  trailing "/" is preserved.  Paths that need no normalization are
+     *  returned without copying.  The path is treated literally; see
+     *  <code>normalizeRawRelative()</code> for encoded paths.
+     *
+     *  @param path A path beginning with "/".
+     *  @return The normalized path relative to the root, without a leading
+     *          "/", or null if a ".." segment would leave the root.
+     */
+    static String normalizeRelative(String path) {
+        int len = path.length();
+        if (isNormal(path, len)) {
+            return path.substring(1);
+        }
+        char[] out = new char[len];
+        int o = 0;
+        int i = 1;
+        while (i <= len) {
+            int end = path.indexOf('/', i);
+            if (end == -1) {
+                end = len;
+            }
+            int segLen = end - i;
+            if (segLen == 0 || (segLen == 1 && path.charAt(i) == '.')) {
+                // skip empty and "." segments
+            } else if (segLen == 2 && path.charAt(i) == '.' && path.charAt(i + 1) == '.') {
+                if (o == 0) {
+                    return null;
+                }
+                // remove the previous segment and its trailing "/"
+                o--;
+                while (o > 0 && out[o - 1] != '/') {
+                    o--;
+                }
+            } else {
+                path.getChars(i, end, out, o);
+                o += segLen;
+                if (end < len) {
+                    out[o++] = '/';
+                }
+            }
+            i = end + 1;
+        }
+        if (o > 0 && out[o - 1] != '/' && path.charAt(len - 1) == '/') {
+            // a trailing "." or ".." segment refers to a directory
+            out[o++] = '/';
+        }
+        return new String(out, 0, o);
+    }
+
+    /**
+     * @return True if the path has no empty, "." or ".." segments.
+     */
+    private static boolean isNormal(String path, int len) {
+        char prev = '/';
+        for (int i = 1; i < len; i++) {
+            char c = path.charAt(i);
+            if (c == '/' && (prev == '/' || isDotSegmentEnd(path, i))) {
+                return false;
+            }
+            prev = c;
+        }
+        return len == 1 || ! isDotSegmentEnd(path, len);
+    }
+
+    /**
+     * @return True if the segment ending at <code>end</code> is "." or "..".
+     */
+    private static boolean isDotSegmentEnd(String path, int end) {
+        if (path.charAt(end - 1) != '.') {
+            return false;
+        }
+        char before = path.charAt(end - 2);
+        return before == '/' || (before == '.' && path.charAt(end - 3) == '/');
+    }
+
+}
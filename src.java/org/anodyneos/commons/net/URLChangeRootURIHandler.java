@@ -27,6 +27,8 @@ public class URLChangeRootURIHandler extends AbstractURIHandler implements URIHa
 
     private URL rootURL;
     private URI rootURI;
+    // the scheme, authority and path of rootURI, in encoded form
+    private String rootString;
 
     public URLChangeRootURIHandler() {
         // expect future call to setRootURL
@@ -44,38 +46,42 @@ public class URLChangeRootURIHandler extends AbstractURIHandler implements URIHa
 
     /**
      *  Returns a URL for the given URI or null if the URI cannot be resolved.
+     *  The URI's path is normalized without building intermediate URIs, and
+     *  URIs whose path would leave the root are not resolved.
      *
      *  @return The URL or null.
      */
     @Override
     public URL toURL(URI uri) {
-        if (null == rootURI) {
+        String rootString = this.rootString;
+        if (null == rootString) {
             return  null;
         } else {
-            String path = uri.getPath();
+            // raw components are already encoded, so need not be re-encoded
+            String path = uri.getRawPath();
             if (null == path || ! path.startsWith("/")) {
                 return null;
-            } else {
-                try {
-                    URI newURI = new URI(rootURI.getScheme()
-                            ,rootURI.getUserInfo()
-                            ,rootURI.getHost()
-                            ,rootURI.getPort()
-                            ,rootURI.getPath() + uri.getPath().substring(1)
-                            ,uri.getQuery()
-                            ,uri.getFragment());
-
-                    newURI = newURI.normalize();
-                    if (! newURI.getPath().startsWith(rootURI.getPath())) {
-                        return null;
-                    } else {
-                        return newURI.toURL();
-                    }
-                } catch (URISyntaxException e) {
-                    return null;
-                } catch (MalformedURLException e) {
-                    return null;
-                }
+            }
+            String relative = URIPaths.normalizeRawRelative(path);
+            if (null == relative) {
+                return null;
+            }
+            String query = uri.getRawQuery();
+            String fragment = uri.getRawFragment();
+            StringBuilder sb = new StringBuilder(rootString.length() + relative.length()
+                    + (null == query ? 0 : query.length() + 1)
+                    + (null == fragment ? 0 : fragment.length() + 1));
+            sb.append(rootString).append(relative);
+            if (null != query) {
+                sb.append('?').append(query);
+            }
+            if (null != fragment) {
+                sb.append('#').append(fragment);
+            }
+            try {
+                return new URL(sb.toString());
+            } catch (MalformedURLException e) {
+                return null;
             }
         }
     }
@@ -102,6 +108,9 @@ public class URLChangeRootURIHandler extends AbstractURIHandler implements URIHa
         }
         this.rootURL = rootURL;
         this.rootURI = uri;
+        this.rootString = uri.getScheme() + ":"
+                + (null == uri.getRawAuthority() ? "" : "//" + uri.getRawAuthority())
+                + uri.getRawPath();
     }
 
 }
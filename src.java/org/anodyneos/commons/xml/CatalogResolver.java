@@ -0,0 +1,175 @@
+package org.anodyneos.commons.xml;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.xml.resolver.Catalog;
+import org.apache.xml.resolver.CatalogManager;
+
+/**
+ *  Memoizes XML Catalog lookups for <code>UnifiedResolver</code>.  The
+ *  catalog files listed by the <code>CatalogManager</code> are checked for
+ *  modifications at most once per check interval; when any has changed, the
+ *  catalog is reloaded and the memoized results are discarded.  Only local
+ *  catalog files are checked; catalogs they reference with
+ *  <code>nextCatalog</code> or delegate entries are not.  This class is
+ *  thread safe.
+ */
+final class CatalogResolver {
+
+    private static final Log log = LogFactory.getLog(CatalogResolver.class);
+
+    private static final int MAX_MEMO_SIZE = 10000;
+    private static final Object NOT_FOUND = new Object();
+
+    private final CatalogManager catalogManager;
+    private volatile State state;
+    private volatile long checkInterval;
+    private final AtomicLong lastCheck = new AtomicLong();
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong resolveCount = new AtomicLong();
+    private final AtomicLong reloadCount = new AtomicLong();
+
+    CatalogResolver(long checkInterval) {
+        this.catalogManager = new CatalogManager();
+        this.checkInterval = checkInterval;
+        List<File> files = getCatalogFiles();
+        this.state = new State(catalogManager.getCatalog(), files, lastModified(files));
+        lastCheck.set(System.currentTimeMillis());
+    }
+
+    void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * @return The URL from the catalog, or null if the catalog cannot resolve
+     *         the identifiers.
+     */
+    URL resolve(String publicId, String systemId) {
+        lookupCount.incrementAndGet();
+        State s = state;
+        ResolutionCache.Key key = new ResolutionCache.Key(publicId, systemId, null);
+        Object memo = s.memo.get(key);
+        if (null != memo) {
+            return memo == NOT_FOUND ? null : (URL) memo;
+        }
+        resolveCount.incrementAndGet();
+        URL url = null;
+        String result = null;
+        try {
+            result = s.catalog.resolvePublic(publicId, systemId);
+        } catch (Exception e) {
+            // nop;
+        }
+        if (result != null) {
+            try {
+                url = new URL(result);
+            } catch(MalformedURLException e) {
+                // nop;
+            }
+        }
+        if (s.memo.size() >= MAX_MEMO_SIZE) {
+            s.memo.clear();
+        }
+        s.memo.put(key, null == url ? NOT_FOUND : url);
+        return url;
+    }
+
+    /**
+     *  Reloads the catalog if a check is due and a catalog file has been
+     *  modified.  Only one thread checks at a time.
+     *
+     *  @return True if the catalog was reloaded.
+     */
+    boolean checkForChanges() {
+        long interval = checkInterval;
+        if (interval < 0) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastCheck.get();
+        if (now - last < interval || ! lastCheck.compareAndSet(last, now)) {
+            return false;
+        }
+        State s = state;
+        if (java.util.Arrays.equals(s.lastModified, lastModified(s.files))) {
+            return false;
+        }
+        List<File> files = getCatalogFiles();
+        long[] lastModified = lastModified(files);
+        state = new State(catalogManager.getPrivateCatalog(), files, lastModified);
+        reloadCount.incrementAndGet();
+        if (log.isInfoEnabled()) {
+            log.info("Reloaded XML Catalog " + files);
+        }
+        return true;
+    }
+
+    private List<File> getCatalogFiles() {
+        List<File> files = new ArrayList<File>();
+        for (Object o : catalogManager.getCatalogFiles()) {
+            String name = String.valueOf(o);
+            try {
+                URL url = new URL(name);
+                if ("file".equals(url.getProtocol())) {
+                    files.add(new File(url.getPath()));
+                }
+            } catch (MalformedURLException e) {
+                files.add(new File(name));
+            }
+        }
+        return files;
+    }
+
+    private static long[] lastModified(List<File> files) {
+        long[] lastModified = new long[files.size()];
+        for (int i = 0; i < lastModified.length; i++) {
+            lastModified[i] = files.get(i).lastModified();
+        }
+        return lastModified;
+    }
+
+    long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    long getResolveCount() {
+        return resolveCount.get();
+    }
+
+    long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     *  A loaded catalog and the results memoized from it, replaced as a
+     *  unit so that results from a previous catalog are never memoized for
+     *  the current one.
+     */
+    private static final class State {
+        private final Catalog catalog;
+        private final List<File> files;
+        private final long[] lastModified;
+        private final ConcurrentHashMap<ResolutionCache.Key, Object> memo =
+                new ConcurrentHashMap<ResolutionCache.Key, Object>();
+
+        State(Catalog catalog, List<File> files, long[] lastModified) {
+            this.catalog = catalog;
+            this.files = files;
+            this.lastModified = lastModified;
+        }
+    }
+
+}
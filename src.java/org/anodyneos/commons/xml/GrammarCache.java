@@ -0,0 +1,145 @@
+package org.anodyneos.commons.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ *  A cache of external DTD subsets and external entities, shared between
+ *  parsers and threads, so that each is fetched once rather than for every
+ *  document.  This matters most for small documents that reference large
+ *  DTDs, such as XHTML with its entity sets.
+ *
+ *  <p>
+ *      Register a <code>GrammarCache</code> with
+ *      <code>UnifiedResolver.setGrammarCache()</code>; it is then used by
+ *      every parser that uses the <code>UnifiedResolver</code> as its
+ *      <code>EntityResolver</code>, including those used by
+ *      <code>TemplatesCacheImpl</code> and <code>Pipeline</code>.  Entities
+ *      are keyed by public identifier when one is given, and otherwise by
+ *      system identifier.  Cached entities are never checked for
+ *      modifications.
+ *  </p>
+ *  <p>
+ *      Entities are cached as bytes rather than as parsed grammars: Xerces'
+ *      grammar pool can skip parsing a cached DTD, but parsers using a cached
+ *      grammar then do not expand entities declared in its external subset,
+ *      which breaks documents using the XHTML entities.
+ *  </p>
+ *  <p>
+ *      This class is thread safe.
+ *  </p>
+ */
+public class GrammarCache {
+
+    public static final long DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTITY_SIZE = 512 * 1024;
+
+    private final ResourceCache cache;
+
+    public GrammarCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_ENTITY_SIZE);
+    }
+
+    /**
+     * @param maxSize The maximum total number of bytes to cache.
+     * @param maxEntitySize The maximum size in bytes of a cached entity.
+     */
+    public GrammarCache(long maxSize, int maxEntitySize) {
+        this.cache = new ResourceCache(maxSize, maxEntitySize, Collections.<String>emptySet());
+    }
+
+    /**
+     *  Returns the cached entity, or resolves it using the given resolver
+     *  and caches it.  If the resolver returns null, the system identifier is
+     *  opened as a URL.  Entities that the resolver returns as character
+     *  streams are not cached.
+     *
+     *  @param resolver The resolver used for entities that are not cached,
+     *         or null.
+     */
+    public InputSource resolveEntity(String publicId, String systemId, EntityResolver resolver)
+    throws SAXException, IOException {
+        String key = null == publicId ? "S " + systemId : "P " + publicId;
+        byte[] bytes = cache.get(key);
+        if (null != bytes) {
+            return newInputSource(publicId, systemId, new ByteArrayInputStream(bytes), null);
+        }
+        InputSource source = null == resolver ? null : resolver.resolveEntity(publicId, systemId);
+        if (null == source) {
+            // default resolution
+            return null == systemId ? null : open(key, publicId, systemId, null);
+        } else if (null != source.getCharacterStream()) {
+            // cannot be cached as bytes
+            return source;
+        } else if (null == source.getByteStream()) {
+            return null == source.getSystemId()
+                    ? source
+                    : open(key, source.getPublicId(), source.getSystemId(), source.getEncoding());
+        } else {
+            InputStream in = cache.read(key, source.getByteStream(), -1);
+            return newInputSource(source.getPublicId(), source.getSystemId(), in, source.getEncoding());
+        }
+    }
+
+    private InputSource open(String key, String publicId, String systemId, String encoding)
+    throws IOException {
+        URLConnection conn = new URL(systemId).openConnection();
+        InputStream in = cache.read(key, conn.getInputStream(), conn.getContentLength());
+        return newInputSource(publicId, systemId, in, encoding);
+    }
+
+    private static InputSource newInputSource(String publicId, String systemId, InputStream in,
+            String encoding) {
+        InputSource source = new InputSource(in);
+        source.setPublicId(publicId);
+        source.setSystemId(systemId);
+        if (null != encoding) {
+            source.setEncoding(encoding);
+        }
+        return source;
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return The number of bytes currently cached.
+     */
+    public long getWeight() {
+        return cache.size();
+    }
+
+    /**
+     * @return The number of entities served from the cache.
+     */
+    public long getHitCount() {
+        return cache.hitCount();
+    }
+
+    /**
+     * @return The number of entities that were not cached when requested.
+     */
+    public long getMissCount() {
+        return cache.missCount();
+    }
+
+    /**
+     * @return The fraction of entities served from the cache, or zero if no
+     *         entities have been requested.
+     */
+    public double getHitRate() {
+        long hits = cache.hitCount();
+        long requests = hits + cache.missCount();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+}
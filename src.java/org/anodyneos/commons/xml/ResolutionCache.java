@@ -0,0 +1,183 @@
+package org.anodyneos.commons.xml;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  A bounded cache of URI resolution results for <code>UnifiedResolver</code>.
+ *  Both successful resolutions and failures (a null URL) are cached; failures
+ *  expire after a configurable time to live.  When the cache grows beyond its
+ *  maximum size, the least recently used tenth of the entries are evicted.
+ *  This class is thread safe, and lookups do not lock.
+ */
+final class ResolutionCache {
+
+    private final ConcurrentHashMap<Key, Resolution> map = new ConcurrentHashMap<Key, Resolution>();
+    private final Object evictionLock = new Object();
+    private final int maxEntries;
+    private final long negativeTTL;
+
+    /**
+     * @param maxEntries The maximum number of entries.
+     * @param negativeTTL The time in milliseconds for which failures are
+     *        cached.
+     */
+    ResolutionCache(int maxEntries, long negativeTTL) {
+        this.maxEntries = maxEntries;
+        this.negativeTTL = negativeTTL;
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    long getNegativeTTL() {
+        return negativeTTL;
+    }
+
+    /**
+     * @return The cached resolution, or null if none is cached or the cached
+     *         failure has expired.
+     */
+    Resolution get(Key key) {
+        Resolution resolution = map.get(key);
+        if (null == resolution) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= resolution.expires) {
+            map.remove(key, resolution);
+            return null;
+        }
+        resolution.lastAccess = now;
+        return resolution;
+    }
+
+    Resolution put(Key key, URI uri, URL url) {
+        long now = System.currentTimeMillis();
+        Resolution resolution = new Resolution(uri, url, null == url ? now + negativeTTL : Long.MAX_VALUE);
+        resolution.lastAccess = now;
+        map.put(key, resolution);
+        if (map.size() > maxEntries) {
+            evict();
+        }
+        return resolution;
+    }
+
+    /**
+     *  Removes entries for the given systemId, whether the systemId was
+     *  requested or was the result of resolving a relative URI.
+     */
+    void invalidate(String systemId) {
+        for (Iterator<Map.Entry<Key, Resolution>> it = map.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Key, Resolution> e = it.next();
+            URI uri = e.getValue().uri;
+            if (systemId.equals(e.getKey().systemId) || (null != uri && systemId.equals(uri.toString()))) {
+                it.remove();
+            }
+        }
+    }
+
+    void clear() {
+        map.clear();
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            int excess = map.size() - maxEntries;
+            if (excess <= 0) {
+                return;
+            }
+            // evict down to 90% so that eviction is not needed for every put
+            int count = excess + maxEntries / 10;
+            List<Map.Entry<Key, Resolution>> entries = new ArrayList<Map.Entry<Key, Resolution>>(map.entrySet());
+            final long[] accessed = new long[entries.size()];
+            Integer[] order = new Integer[entries.size()];
+            for (int i = 0; i < order.length; i++) {
+                // snapshot, since lastAccess changes during the sort
+                accessed[i] = entries.get(i).getValue().lastAccess;
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return accessed[a] < accessed[b] ? -1 : accessed[a] == accessed[b] ? 0 : 1;
+                }
+            });
+            for (int i = 0; i < count && i < order.length; i++) {
+                Map.Entry<Key, Resolution> e = entries.get(order[i]);
+                map.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     *  A resolution request: either a publicId and systemId, or a base URI
+     *  and a possibly relative href.
+     */
+    static final class Key {
+        private final String publicId;
+        private final String systemId;
+        private final String href;
+        private final int hash;
+
+        Key(String publicId, String systemId, String href) {
+            this.publicId = publicId;
+            this.systemId = systemId;
+            this.href = href;
+            int h = null == publicId ? 0 : publicId.hashCode();
+            h = 31 * h + (null == systemId ? 0 : systemId.hashCode());
+            h = 31 * h + (null == href ? 0 : href.hashCode());
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            } else if (! (o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && eq(publicId, k.publicId) && eq(systemId, k.systemId) && eq(href, k.href);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private static boolean eq(String a, String b) {
+            return null == a ? null == b : a.equals(b);
+        }
+    }
+
+    /**
+     *  The result of a resolution: the absolute URI and the URL it resolved
+     *  to, or a null URL if it could not be resolved.
+     */
+    static final class Resolution {
+        final URI uri;
+        final URL url;
+        private final long expires;
+        private volatile long lastAccess;
+
+        Resolution(URI uri, URL url, long expires) {
+            this.uri = uri;
+            this.url = url;
+            this.expires = expires;
+        }
+    }
+
+}
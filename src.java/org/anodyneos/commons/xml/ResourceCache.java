@@ -0,0 +1,198 @@
+package org.anodyneos.commons.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  A cache of the content of small resources for <code>UnifiedResolver</code>
+ *  and <code>GrammarCache</code>, bounded by the total number of bytes
+ *  cached.  Only resources no larger than <code>maxResourceSize</code> are
+ *  cached, and <code>getInputStream()</code> caches only resources whose URL
+ *  protocol is enabled.  Cached content is never checked for modifications,
+ *  so only protocols serving immutable resources, such as <code>jar</code>,
+ *  should be enabled.  When the cache is full, the least recently used
+ *  resources are evicted until it is at most 90% full.  This class is thread safe.
+ */
+final class ResourceCache {
+
+    private final ConcurrentHashMap<String, Resource> map = new ConcurrentHashMap<String, Resource>();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private final long maxSize;
+    private final int maxResourceSize;
+    private final Set<String> protocols;
+
+    /**
+     * @param maxSize The maximum total number of bytes to cache.
+     * @param maxResourceSize The maximum size in bytes of a cached resource.
+     * @param protocols The URL protocols of resources that may be cached.
+     */
+    ResourceCache(long maxSize, int maxResourceSize, Set<String> protocols) {
+        this.maxSize = maxSize;
+        this.maxResourceSize = maxResourceSize;
+        this.protocols = Collections.unmodifiableSet(new HashSet<String>(protocols));
+    }
+
+    /**
+     * @return True if resources having the given URL protocol may be cached.
+     */
+    boolean isCacheable(String protocol) {
+        return protocols.contains(protocol);
+    }
+
+    /**
+     *  Returns the content of the connection's resource, from the cache if
+     *  possible.  The connection is not connected if the content is cached.
+     */
+    InputStream getInputStream(URLConnection conn) throws IOException {
+        if (! protocols.contains(conn.getURL().getProtocol())) {
+            return conn.getInputStream();
+        }
+        String key = conn.getURL().toExternalForm();
+        byte[] cached = get(key);
+        if (null != cached) {
+            return new ByteArrayInputStream(cached);
+        }
+        int length = conn.getContentLength();
+        InputStream in = conn.getInputStream();
+        if (length > maxResourceSize) {
+            return in;
+        }
+        return read(key, in, length);
+    }
+
+    /**
+     *  Reads the stream, caching its content if it is no larger than
+     *  <code>maxResourceSize</code>.
+     *
+     *  @param length The length of the content, or -1 if unknown.
+     *  @return A stream having the same content as the stream that was read.
+     */
+    InputStream read(String key, InputStream in, int length) throws IOException {
+        // the content length may be unknown, so read at most one byte more than allowed
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : 8192);
+        byte[] buf = new byte[8192];
+        boolean complete = false;
+        try {
+            while (out.size() <= maxResourceSize) {
+                int n = in.read(buf, 0, Math.min(buf.length, maxResourceSize + 1 - out.size()));
+                if (n == -1) {
+                    complete = true;
+                    break;
+                }
+                out.write(buf, 0, n);
+            }
+        } finally {
+            if (complete) {
+                try { in.close(); } catch (Exception e) { /* no op */ }
+            }
+        }
+        byte[] bytes = out.toByteArray();
+        if (! complete) {
+            // too large; return what was read followed by the remainder
+            return new SequenceInputStream(new ByteArrayInputStream(bytes), in);
+        }
+        put(key, bytes);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * @return The cached content, or null.
+     */
+    byte[] get(String key) {
+        Resource resource = map.get(key);
+        if (null == resource) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        resource.lastAccess = System.nanoTime();
+        return resource.bytes;
+    }
+
+    private void put(String key, byte[] bytes) {
+        Resource resource = new Resource(bytes);
+        Resource old = map.put(key, resource);
+        size.addAndGet(bytes.length - (null == old ? 0 : old.bytes.length));
+        if (size.get() > maxSize) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            if (size.get() <= maxSize) {
+                return;
+            }
+            // evict down to 90% so that eviction is not needed for every put
+            long target = maxSize - maxSize / 10;
+            List<Map.Entry<String, Resource>> entries = new ArrayList<Map.Entry<String, Resource>>(map.entrySet());
+            final long[] accessed = new long[entries.size()];
+            Integer[] order = new Integer[entries.size()];
+            for (int i = 0; i < order.length; i++) {
+                // snapshot, since lastAccess changes during the sort
+                accessed[i] = entries.get(i).getValue().lastAccess;
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    long d = accessed[a] - accessed[b];
+                    return d < 0 ? -1 : d == 0 ? 0 : 1;
+                }
+            });
+            for (int i = 0; i < order.length && size.get() > target; i++) {
+                Map.Entry<String, Resource> e = entries.get(order[i]);
+                if (map.remove(e.getKey(), e.getValue())) {
+                    size.addAndGet(-e.getValue().bytes.length);
+                }
+            }
+        }
+    }
+
+    void clear() {
+        for (Map.Entry<String, Resource> e : map.entrySet()) {
+            if (map.remove(e.getKey(), e.getValue())) {
+                size.addAndGet(-e.getValue().bytes.length);
+            }
+        }
+    }
+
+    long size() {
+        return size.get();
+    }
+
+    long hitCount() {
+        return hitCount.get();
+    }
+
+    long missCount() {
+        return missCount.get();
+    }
+
+    private static final class Resource {
+        private final byte[] bytes;
+        private volatile long lastAccess = System.nanoTime();
+
+        Resource(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+}
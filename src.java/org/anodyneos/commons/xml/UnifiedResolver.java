@@ -3,36 +3,55 @@ package org.anodyneos.commons.xml;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.URIResolver;
 import javax.xml.transform.stream.StreamSource;
 
+import org.anodyneos.commons.net.FileRootURIHandler;
 import org.anodyneos.commons.net.URIHandler;
 import org.anodyneos.commons.net.URIHelper;
-import org.apache.xml.resolver.Catalog;
-import org.apache.xml.resolver.CatalogManager;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
+ * This class is thread safe.  Resolution does not acquire any locks, so it
+ * does not serialize concurrent transformations or pin virtual threads.
+ *
  * @TODO: More configuration for XMLCatalogs. Allow custom properties file,
  * protocolHandler vs. catalog preference?
  */
 public class UnifiedResolver extends URIHelper implements EntityResolver, URIResolver  {
 
-    private boolean defaultLookupEnabled;
-    private HashMap<String, URIHandler> protocolHandlers = new HashMap<String, URIHandler>();
-    private CatalogManager catalogManager = null;
-    private Catalog catalog = null;
+    private volatile boolean defaultLookupEnabled;
+    // copy-on-write; lookups do not lock
+    private volatile Map<String, URIHandler> protocolHandlers = Collections.emptyMap();
+    private volatile CatalogResolver catalogResolver = null;
+    private long catalogCheckInterval = DEFAULT_CATALOG_CHECK_INTERVAL;
+    private volatile ResolutionCache resolutionCache = null;
+    private int resolutionCacheSize = 0;
+    private long negativeResolutionTTL = DEFAULT_NEGATIVE_RESOLUTION_TTL;
+
+    private volatile ResourceCache resourceCache = null;
+    private volatile GrammarCache grammarCache = null;
+    private long resourceCacheSize = 0;
+    private int maxCachedResourceSize = DEFAULT_MAX_CACHED_RESOURCE_SIZE;
+    private Set<String> resourceCacheProtocols = new HashSet<String>(Collections.singleton("jar"));
+
+    public static final long DEFAULT_NEGATIVE_RESOLUTION_TTL = 10000;
+    public static final long DEFAULT_CATALOG_CHECK_INTERVAL = 5000;
+    public static final int DEFAULT_MAX_CACHED_RESOURCE_SIZE = 64 * 1024;
 
     // constructors
     public UnifiedResolver() {
@@ -43,13 +62,245 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
     }
 
     // catalog
+
+    /**
+     * Enables resolution using the XML Catalog configured by
+     * <code>CatalogManager.properties</code>.  Catalog results are memoized
+     * per publicId and systemId.  Catalog files are checked for
+     * modifications at most once per <code>catalogCheckInterval</code>; when
+     * a file has changed, the catalog is reloaded and the memoized results
+     * and the resolution cache are cleared.
+     */
     public synchronized void setXMLCatalogEnabled(boolean enableXMLCatalog) {
-        if (enableXMLCatalog && catalog == null) {
-            catalogManager = new CatalogManager();
-            catalog = catalogManager.getCatalog();
+        if (enableXMLCatalog && catalogResolver == null) {
+            catalogResolver = new CatalogResolver(catalogCheckInterval);
         } else if (! enableXMLCatalog) {
-            catalogManager = null;
-            catalog = null;
+            catalogResolver = null;
+        }
+        clearResolutionCache();
+    }
+
+    /**
+     * @param catalogCheckInterval The minimum time in milliseconds between
+     *        checks of the catalog files for modifications, or a negative
+     *        value to never check.
+     */
+    public synchronized void setCatalogCheckInterval(long catalogCheckInterval) {
+        this.catalogCheckInterval = catalogCheckInterval;
+        CatalogResolver resolver = catalogResolver;
+        if (null != resolver) {
+            resolver.setCheckInterval(catalogCheckInterval);
+        }
+    }
+    public synchronized long getCatalogCheckInterval() {
+        return catalogCheckInterval;
+    }
+
+    /**
+     * @return The number of catalog lookups, including memoized lookups.
+     */
+    public long getCatalogLookupCount() {
+        CatalogResolver resolver = catalogResolver;
+        return null == resolver ? 0 : resolver.getLookupCount();
+    }
+
+    /**
+     * @return The number of catalog lookups answered from memoized results.
+     */
+    public long getCatalogMemoHitCount() {
+        CatalogResolver resolver = catalogResolver;
+        return null == resolver ? 0 : resolver.getLookupCount() - resolver.getResolveCount();
+    }
+
+    /**
+     * @return The number of catalog lookups that were resolved by the
+     *         catalog itself.
+     */
+    public long getCatalogResolveCount() {
+        CatalogResolver resolver = catalogResolver;
+        return null == resolver ? 0 : resolver.getResolveCount();
+    }
+
+    /**
+     * @return The number of times the catalog was reloaded after a catalog
+     *         file changed.
+     */
+    public long getCatalogReloadCount() {
+        CatalogResolver resolver = catalogResolver;
+        return null == resolver ? 0 : resolver.getReloadCount();
+    }
+
+    // resolution cache
+
+    /**
+     * Enables caching of the URLs that URIs resolve to, including URIs that
+     * cannot be resolved.  Cached resolutions are used by all resolution
+     * methods, and resources are opened directly from the cached URL rather
+     * than through the <code>URIHandler</code>.  Resolutions are cached until
+     * evicted or invalidated, except for failures, which expire after
+     * <code>negativeResolutionTTL</code> milliseconds.  The cache is cleared
+     * when handlers are added or replaced or the XML Catalog is enabled or
+     * disabled.
+     *
+     * @param resolutionCacheSize The maximum number of cached resolutions,
+     *        or zero (the default) to disable caching.
+     */
+    public synchronized void setResolutionCacheSize(int resolutionCacheSize) {
+        this.resolutionCacheSize = resolutionCacheSize;
+        resetResolutionCache();
+    }
+    public synchronized int getResolutionCacheSize() {
+        return resolutionCacheSize;
+    }
+
+    /**
+     * @param negativeResolutionTTL The time in milliseconds for which a URI
+     *        that cannot be resolved is cached as such.
+     */
+    public synchronized void setNegativeResolutionTTL(long negativeResolutionTTL) {
+        this.negativeResolutionTTL = negativeResolutionTTL;
+        resetResolutionCache();
+    }
+    public synchronized long getNegativeResolutionTTL() {
+        return negativeResolutionTTL;
+    }
+
+    private void resetResolutionCache() {
+        if (resolutionCacheSize > 0) {
+            resolutionCache = new ResolutionCache(resolutionCacheSize, negativeResolutionTTL);
+        } else {
+            resolutionCache = null;
+        }
+    }
+
+    /**
+     * Returns the resolution cache, first clearing it if the catalog has been
+     * reloaded, since cached resolutions may have come from the catalog.
+     */
+    private ResolutionCache getResolutionCache() {
+        CatalogResolver resolver = catalogResolver;
+        if (null != resolver && resolver.checkForChanges()) {
+            clearResolutionCache();
+        }
+        return resolutionCache;
+    }
+
+    public void clearResolutionCache() {
+        ResolutionCache cache = resolutionCache;
+        if (null != cache) {
+            cache.clear();
+        }
+    }
+
+    // resource cache
+
+    /**
+     * Enables caching of the content of small resources opened by
+     * <code>resolve()</code>, <code>resolveEntity()</code>, and
+     * <code>openStream()</code>, such as DTDs, entities, and documents loaded
+     * with <code>document()</code>.  Only resources having a URL protocol
+     * enabled with <code>setResourceCacheEnabled()</code> (by default, only
+     * <code>jar</code>) and no larger than <code>maxCachedResourceSize</code>
+     * are cached.  Cached content is never checked for modifications.
+     *
+     * @param resourceCacheSize The maximum total number of bytes to cache,
+     *        or zero (the default) to disable caching.
+     */
+    public synchronized void setResourceCacheSize(long resourceCacheSize) {
+        this.resourceCacheSize = resourceCacheSize;
+        resetResourceCache();
+    }
+    public synchronized long getResourceCacheSize() {
+        return resourceCacheSize;
+    }
+
+    /**
+     * @param maxCachedResourceSize The maximum size in bytes of a cached
+     *        resource.
+     */
+    public synchronized void setMaxCachedResourceSize(int maxCachedResourceSize) {
+        this.maxCachedResourceSize = maxCachedResourceSize;
+        resetResourceCache();
+    }
+    public synchronized int getMaxCachedResourceSize() {
+        return maxCachedResourceSize;
+    }
+
+    /**
+     * Enables or disables caching of resources having the given URL protocol.
+     * Protocols should only be enabled if their resources do not change.
+     *
+     * @param protocol The URL protocol, such as <code>jar</code> or
+     *        <code>file</code>.
+     */
+    public synchronized void setResourceCacheEnabled(String protocol, boolean enabled) {
+        if (enabled) {
+            resourceCacheProtocols.add(protocol);
+        } else {
+            resourceCacheProtocols.remove(protocol);
+        }
+        resetResourceCache();
+    }
+    public synchronized boolean isResourceCacheEnabled(String protocol) {
+        return resourceCacheProtocols.contains(protocol);
+    }
+
+    private void resetResourceCache() {
+        if (resourceCacheSize > 0) {
+            resourceCache = new ResourceCache(resourceCacheSize, maxCachedResourceSize, resourceCacheProtocols);
+        } else {
+            resourceCache = null;
+        }
+    }
+
+    public void clearResourceCache() {
+        ResourceCache cache = resourceCache;
+        if (null != cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return The number of bytes currently cached.
+     */
+    public long getResourceCacheWeight() {
+        ResourceCache cache = resourceCache;
+        return null == cache ? 0 : cache.size();
+    }
+
+    /**
+     * @return The number of cacheable resources served from the cache.
+     */
+    public long getResourceCacheHitCount() {
+        ResourceCache cache = resourceCache;
+        return null == cache ? 0 : cache.hitCount();
+    }
+
+    /**
+     * @return The number of cacheable resources that were not cached.
+     */
+    public long getResourceCacheMissCount() {
+        ResourceCache cache = resourceCache;
+        return null == cache ? 0 : cache.missCount();
+    }
+
+    /**
+     * Returns the content of a resource, from the resource cache if enabled.
+     */
+    private InputStream getInputStream(URLConnection conn) throws IOException {
+        ResourceCache cache = resourceCache;
+        return null == cache ? conn.getInputStream() : cache.getInputStream(conn);
+    }
+
+    /**
+     * Removes cached resolutions of the given URI, for example after a
+     * resource has been created at a location previously cached as not
+     * found.
+     */
+    public void invalidateResolution(URI uri) {
+        ResolutionCache cache = getResolutionCache();
+        if (null != cache) {
+            cache.invalidate(uri.toString());
         }
     }
 
@@ -61,25 +312,77 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
         return defaultLookupEnabled;
     }
 
+    // grammar cache
+
+    /**
+     * Sets a cache of external DTD subsets and entities used by
+     * <code>resolveEntity()</code>.  A <code>GrammarCache</code> may be
+     * shared by several resolvers.
+     *
+     * @param grammarCache The cache, or null to disable.
+     */
+    public void setGrammarCache(GrammarCache grammarCache) {
+        this.grammarCache = grammarCache;
+    }
+    public GrammarCache getGrammarCache() {
+        return grammarCache;
+    }
+
     // SAX EntityResolver
     @Override
     public InputSource resolveEntity(String publicId, String systemId)
+    throws org.xml.sax.SAXException, IOException {
+        GrammarCache cache = grammarCache;
+        if (null != cache) {
+            return cache.resolveEntity(publicId, systemId, new EntityResolver() {
+                @Override
+                public InputSource resolveEntity(String publicId, String systemId)
+                throws SAXException, IOException {
+                    return resolveEntityUncached(publicId, systemId);
+                }
+            });
+        }
+        return resolveEntityUncached(publicId, systemId);
+    }
+
+    private InputSource resolveEntityUncached(String publicId, String systemId)
     throws org.xml.sax.SAXException, IOException {
 
         InputSource inputSource = null;
 
-        URI systemURI;
-        try {
-            systemURI = new URI(systemId);
-        } catch (URISyntaxException e) {
-            IOException ioe = new IOException(e.getMessage());
-            e.initCause(e);
-            throw ioe;
+        ResolutionCache cache = getResolutionCache();
+        ResolutionCache.Key key = null;
+        ResolutionCache.Resolution resolution = null;
+        if (null != cache) {
+            key = new ResolutionCache.Key(publicId, systemId, null);
+            resolution = cache.get(key);
         }
 
         try {
-            URLConnection conn = openConnection(publicId, systemURI);
-            if (null == conn) {
+            URLConnection conn;
+            InputStream fileStream;
+            if (null != resolution) {
+                fileStream = openFileRootStream(publicId, resolution.uri);
+                conn = null != fileStream ? null : connect(resolution.url);
+            } else {
+                URI systemURI;
+                try {
+                    systemURI = new URI(systemId);
+                } catch (URISyntaxException e) {
+                    IOException ioe = new IOException(e.getMessage());
+                    e.initCause(e);
+                    throw ioe;
+                }
+                fileStream = openFileRootStream(publicId, systemURI);
+                if (null != fileStream) {
+                    conn = null;
+                } else if (null != cache) {
+                    conn = connect(cache.put(key, systemURI, resolveURL(publicId, systemURI)).url);
+                } else {
+                    conn = openConnection(publicId, systemURI);
+                }
+            }
+            if (null == conn && null == fileStream) {
                 if (isDefaultLookupEnabled()) {
                     // Let default resolver handle all other URLs
                     return null;
@@ -88,7 +391,7 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
                     throw new FileNotFoundException("File not found '" + systemId + "'.");
                 }
             }
-            InputStream inputStream = conn.getInputStream();
+            InputStream inputStream = null != fileStream ? fileStream : getInputStream(conn);
             inputSource = new InputSource(inputStream);
             inputSource.setPublicId(publicId);
             inputSource.setSystemId(systemId);
@@ -103,27 +406,48 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
     // trax URIResolver
     @Override
     public Source resolve(String href, String base) throws javax.xml.transform.TransformerException {
+        ResolutionCache cache = getResolutionCache();
+        ResolutionCache.Key key = null;
+        ResolutionCache.Resolution resolution = null;
+        if (null != cache) {
+            key = null == base
+                    ? new ResolutionCache.Key(null, href, null)
+                    : new ResolutionCache.Key(null, base, href);
+            resolution = cache.get(key);
+        }
+
         URI uri;
-        try {
-            if (base != null) {
-                URI baseURI = new URI(base);
-                // check to support the self referencing construct "document('')" in XSLT.
-                if ("".equals(href)) {
-                    uri = baseURI;
+        if (null != resolution) {
+            uri = resolution.uri;
+        } else {
+            try {
+                if (base != null) {
+                    URI baseURI = new URI(base);
+                    // check to support the self referencing construct "document('')" in XSLT.
+                    if ("".equals(href)) {
+                        uri = baseURI;
+                    } else {
+                        uri = baseURI.resolve(href);
+                    }
                 } else {
-                    uri = baseURI.resolve(href);
+                    uri = new URI(href);
                 }
-            } else {
-                uri = new URI(href);
+            } catch (URISyntaxException e) {
+                throw new TransformerException(e);
+            }
+            if (null != cache) {
+                resolution = cache.put(key, uri, resolveURL(null, uri));
             }
-        } catch (URISyntaxException e) {
-            throw new TransformerException(e);
         }
 
         Source source = null;
 
         try {
-            URLConnection conn = openConnection(uri);
+            InputStream fileStream = openFileRootStream(null, uri);
+            if (null != fileStream) {
+                return new StreamSource(fileStream, uri.toString());
+            }
+            URLConnection conn = null == resolution ? openConnection(uri) : connect(resolution.url);
             if (null == conn) {
                 if (isDefaultLookupEnabled()) {
                     // Let default resolver handle all other URLs
@@ -134,7 +458,7 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
                             + "'.");
                 }
             }
-            InputStream inputStream = conn.getInputStream();
+            InputStream inputStream = getInputStream(conn);
             source = new StreamSource(inputStream, uri.toString());
         } catch (java.io.FileNotFoundException e) {
             throw new TransformerException("Resource base '" + base + "'; href '" + href
@@ -148,17 +472,25 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
     }
 
     @Override
-    protected synchronized URIHandler getURIHandler(URI uri) {
+    protected URIHandler getURIHandler(URI uri) {
         return protocolHandlers.get(uri.getScheme());
     }
 
+    /**
+     * Registers a handler.  Handlers are replaced by copying the registry, so
+     * registering handlers is relatively expensive while looking them up
+     * never blocks.
+     */
     public synchronized void addProtocolHandler(String protocol, URIHandler uriHandler) {
-        protocolHandlers.put(protocol, uriHandler);
+        HashMap<String, URIHandler> handlers = new HashMap<String, URIHandler>(protocolHandlers);
+        handlers.put(protocol, uriHandler);
+        protocolHandlers = Collections.unmodifiableMap(handlers);
+        clearResolutionCache();
     }
 
     public synchronized void setProtocolHandlers(HashMap<String, URIHandler> handlers) {
-        protocolHandlers.clear();
-        protocolHandlers.putAll(handlers);
+        protocolHandlers = Collections.unmodifiableMap(new HashMap<String, URIHandler>(handlers));
+        clearResolutionCache();
     }
 
     /**
@@ -189,6 +521,29 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
      * Adds support for XML Catalog.
      */
     public InputStream openStream(String publicId, URI uri) throws IOException {
+        if (null != resourceCache) {
+            URLConnection conn = openConnection(publicId, uri);
+            if (null == conn) {
+                return null;
+            }
+            try {
+                return getInputStream(conn);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
+        ResolutionCache cache = getResolutionCache();
+        if (null != cache && null != uri) {
+            URL url = toURL(cache, publicId, uri);
+            if (null == url) {
+                return null;
+            }
+            try {
+                return url.openStream();
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
         String systemId = null;
         if (null != uri) {
             systemId = uri.toString();
@@ -207,6 +562,10 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
      * Adds support for XML Catalog.
      */
     public URLConnection openConnection(String publicId, URI uri) throws IOException {
+        ResolutionCache cache = getResolutionCache();
+        if (null != cache && null != uri) {
+            return connect(toURL(cache, publicId, uri));
+        }
         String systemId = null;
         if (null != uri) {
             systemId = uri.toString();
@@ -225,6 +584,26 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
      * Adds support for XML Catalog.
      */
     public URL toURL(String publicId, URI uri) {
+        ResolutionCache cache = getResolutionCache();
+        if (null != cache && null != uri) {
+            return toURL(cache, publicId, uri);
+        }
+        return resolveURL(publicId, uri);
+    }
+
+    private URL toURL(ResolutionCache cache, String publicId, URI uri) {
+        ResolutionCache.Key key = new ResolutionCache.Key(publicId, uri.toString(), null);
+        ResolutionCache.Resolution resolution = cache.get(key);
+        if (null == resolution) {
+            resolution = cache.put(key, uri, resolveURL(publicId, uri));
+        }
+        return resolution.url;
+    }
+
+    /**
+     * Resolves using the XML Catalog and the URIHandlers, without caching.
+     */
+    private URL resolveURL(String publicId, URI uri) {
         String systemId = null;
         if (null != uri) {
             systemId = uri.toString();
@@ -239,6 +618,43 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
         }
     }
 
+    /**
+     * Opens a stream directly from the <code>FileRootURIHandler</code>
+     * registered for the URI's scheme, which reads files through a
+     * <code>FileChannel</code> rather than a <code>URLConnection</code>.
+     * URIs mapped by the XML Catalog, and files served from the resource
+     * cache, are left to the connection based lookup.
+     *
+     * @return The stream, or null if the URI is not handled by a
+     *         <code>FileRootURIHandler</code> or the file does not exist.
+     */
+    private InputStream openFileRootStream(String publicId, URI uri) throws IOException {
+        URIHandler handler = getURIHandler(uri);
+        if (! (handler instanceof FileRootURIHandler)) {
+            return null;
+        }
+        ResourceCache cache = resourceCache;
+        if ((null != cache && cache.isCacheable("file")) || null != getURLFromCatalog(publicId, uri.toString())) {
+            return null;
+        }
+        return handler.openStream(uri);
+    }
+
+    /**
+     * Opens a connection to a resolved URL, returning null if the URL is null
+     * or the resource does not exist.
+     */
+    private static URLConnection connect(URL url) throws IOException {
+        if (null == url) {
+            return null;
+        }
+        try {
+            return url.openConnection();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
     /**
      * Try to get a URL from the XML catalog.
      * @param publicId
@@ -246,22 +662,11 @@ public class UnifiedResolver extends URIHelper implements EntityResolver, URIRes
      * @return the URL or null if catalog does not exist or cannot resolve.
      */
     protected URL getURLFromCatalog(String publicId, String systemId) {
-        if(null != catalog) {
-            String result = null;
-            try {
-                result = catalog.resolvePublic(publicId, systemId);
-            } catch (Exception e) {
-                // nop;
-            }
-            if (result != null) {
-                try {
-                    return new URL(result);
-                } catch(MalformedURLException e) {
-                    // nop;
-                }
-            }
+        CatalogResolver resolver = catalogResolver;
+        if(null != resolver) {
+            return resolver.resolve(publicId, systemId);
         }
-        // catalog == null or Exception
+        // catalog == null
         return null;
     }
 }
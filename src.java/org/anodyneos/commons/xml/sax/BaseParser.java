@@ -3,7 +3,6 @@ package org.anodyneos.commons.xml.sax;
 import java.io.IOException;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.xml.sax.EntityResolver;
@@ -14,6 +13,8 @@ import org.xml.sax.helpers.DefaultHandler;
 
 public class BaseParser {
 
+    private static final XMLReaderPool readerPool = new XMLReaderPool(newSAXParserFactory());
+
     public BaseParser() {
         // super
     }
@@ -25,25 +26,30 @@ public class BaseParser {
     public void process(InputSource is, ElementProcessor p, EntityResolver resolver)
             throws SAXException, IOException {
         DefaultHandler dh = new BaseDh(p);
-        SAXParser sp = newSAXParser();
-        XMLReader reader = sp.getXMLReader();
-        //reader.setErrorHandler(new SAXErrorHandler());
-        reader.setContentHandler(dh);
-        if (resolver != null) {
-            reader.setEntityResolver(resolver);
+        XMLReader reader = readerPool.borrowReader();
+        try {
+            //reader.setErrorHandler(new SAXErrorHandler());
+            reader.setContentHandler(dh);
+            if (resolver != null) {
+                reader.setEntityResolver(resolver);
+            }
+            reader.parse(is);
+        } finally {
+            readerPool.releaseReader(reader);
         }
-        reader.parse(is);
     }
 
-    private SAXParser newSAXParser() throws SAXException {
+    private static SAXParserFactory newSAXParserFactory() {
         try {
             SAXParserFactory spf = SAXParserFactory.newInstance();
             spf.setNamespaceAware(true);
             spf.setFeature("http://xml.org/sax/features/namespaces", true);
             spf.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
-            return spf.newSAXParser();
+            return spf;
         } catch (ParserConfigurationException e) {
-            throw new SAXException(e);
+            throw new IllegalStateException(e);
+        } catch (SAXException e) {
+            throw new IllegalStateException(e);
         }
     }
 
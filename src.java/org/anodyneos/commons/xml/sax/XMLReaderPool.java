@@ -0,0 +1,137 @@
+package org.anodyneos.commons.xml.sax;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A bounded pool of <code>XMLReader</code>s created by a
+ * <code>SAXParserFactory</code>, avoiding the cost of creating a new parser
+ * for each document.  This class is thread safe and does not block; if no
+ * idle reader is available, a new one is created.
+ *
+ * <p>
+ * Readers are reset when released: the content, DTD, and error handlers,
+ * entity resolver, and lexical handler are replaced with no-op
+ * implementations having the default SAX behavior.  Features and properties
+ * set by the caller are <i>not</i> reset; callers must restore any features
+ * that they change.  A reader must not be used after it is released.
+ * </p>
+ *
+ * <p>
+ * Usage:
+ * </p>
+ * <pre>
+ *     XMLReader reader = pool.borrowReader();
+ *     try {
+ *         reader.setContentHandler(handler);
+ *         reader.parse(inputSource);
+ *     } finally {
+ *         pool.releaseReader(reader);
+ *     }
+ * </pre>
+ */
+public class XMLReaderPool {
+
+    public static final int DEFAULT_MAX_IDLE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+    // DefaultHandler has the default behavior for all SAX callbacks
+    private static final DefaultHandler NO_OP = new DefaultHandler();
+
+    private final SAXParserFactory factory;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<XMLReader> idle = new ConcurrentLinkedQueue<XMLReader>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * @param factory The factory used to create readers.  The factory must not
+     *        be reconfigured after the pool is created.
+     */
+    public XMLReaderPool(SAXParserFactory factory) {
+        this(factory, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param factory The factory used to create readers.  The factory must not
+     *        be reconfigured after the pool is created.
+     * @param maxIdle The maximum number of idle readers to retain.
+     */
+    public XMLReaderPool(SAXParserFactory factory, int maxIdle) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+
+    public SAXParserFactory getSAXParserFactory() {
+        return factory;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * Returns an idle reader, or a new reader if none are idle.
+     *
+     * @return The reader.
+     * @throws SAXException if a new reader cannot be created.
+     */
+    public XMLReader borrowReader() throws SAXException {
+        XMLReader reader = idle.poll();
+        if (null != reader) {
+            idleCount.decrementAndGet();
+            return reader;
+        }
+        try {
+            // SAXParserFactory is not thread safe
+            synchronized (factory) {
+                return factory.newSAXParser().getXMLReader();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    /**
+     * Resets the reader and returns it to the pool, or discards it if the pool
+     * already has <code>maxIdle</code> idle readers.
+     *
+     * @param reader The reader, which must have been obtained from this pool.
+     */
+    public void releaseReader(XMLReader reader) {
+        if (null == reader || idleCount.get() >= maxIdle) {
+            return;
+        }
+        reader.setContentHandler(NO_OP);
+        reader.setDTDHandler(NO_OP);
+        reader.setErrorHandler(NO_OP);
+        reader.setEntityResolver(NO_OP);
+        try {
+            reader.setProperty(LEXICAL_HANDLER, null);
+        } catch (SAXNotRecognizedException e) {
+            // lexical handlers not supported; nothing to reset
+        } catch (SAXNotSupportedException e) {
+            // cannot reset; discard
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+        } else {
+            idle.offer(reader);
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+package org.anodyneos.commons.xml.xsl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ *  Transforms many documents with the same stylesheet in parallel, using
+ *  <code>Transformer</code>s from a <code>TransformerPool</code>.
+ *
+ *  <pre>
+ *      BatchTransformer batch = new BatchTransformer(templatesCache.getTransformerPool(uri));
+ *      batch.setOrdered(true);
+ *      int failures = batch.transform(sources, new BatchTransformer.ResultFactory() {
+ *          public Result newResult(int index, Source source) throws Exception {
+ *              return new StreamResult(new File(outDir, index + ".xml"));
+ *          }
+ *      }, new BatchTransformer.Listener() {
+ *          public void completed(int index, Source source, Result result) {
+ *              // close streams, record success
+ *          }
+ *          public void failed(int index, Source source, Result result, Exception e) {
+ *              log.error("Unable to transform " + source.getSystemId(), e);
+ *          }
+ *      });
+ *  </pre>
+ *
+ *  <p>
+ *      Sources are read from the <code>Iterator</code>, and Results created,
+ *      on the calling thread, so neither needs to be thread safe.  At most
+ *      <code>maxInFlight</code> documents are submitted but not yet reported
+ *      to the <code>Listener</code>; when the limit is reached, the calling
+ *      thread waits, so that a large or lazily produced sequence of sources
+ *      is not read into memory all at once.  <code>Listener</code> calls are
+ *      serialized, and are made in input order when <code>ordered</code> is
+ *      true.
+ *  </p>
+ *  <p>
+ *      Instances are thread safe and may be reused; changed settings apply
+ *      to subsequent calls to <code>transform()</code>.
+ *  </p>
+ */
+public class BatchTransformer {
+
+    private static final Log log = LogFactory.getLog(BatchTransformer.class);
+
+    /**
+     *  Creates the <code>Result</code> for each source.
+     */
+    public interface ResultFactory {
+        Result newResult(int index, Source source) throws Exception;
+    }
+
+    /**
+     *  Receives the outcome of each transformation.
+     */
+    public interface Listener {
+        void completed(int index, Source source, Result result);
+
+        /**
+         * @param result The Result, or null if the ResultFactory failed.
+         * @param e The failure.  Errors thrown during the transformation
+         *        are wrapped in an <code>ExecutionException</code>.
+         */
+        void failed(int index, Source source, Result result, Exception e);
+    }
+
+    private final TransformerPool transformerPool;
+    private volatile int threads = Runtime.getRuntime().availableProcessors();
+    private volatile int maxInFlight = 4 * threads;
+    private volatile boolean ordered = false;
+
+    public BatchTransformer(TransformerPool transformerPool) {
+        this.transformerPool = transformerPool;
+    }
+
+    public TransformerPool getTransformerPool() {
+        return transformerPool;
+    }
+
+    /**
+     * @param threads The number of worker threads.  Defaults to the number of
+     *        available processors.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param maxInFlight The maximum number of documents submitted but not
+     *        yet reported to the Listener.  Defaults to four times the number
+     *        of available processors.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @param ordered True to report outcomes to the Listener in input order.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public boolean getOrdered() {
+        return ordered;
+    }
+
+    /**
+     *  Transforms each source, returning when all transformations have
+     *  completed and been reported to the listener.
+     *
+     *  @return The number of failed transformations.
+     *  @throws InterruptedException if the calling thread is interrupted
+     *          while waiting; transformations in progress are interrupted
+     *          and outstanding results are not reported.
+     */
+    public int transform(Iterator<? extends Source> sources, ResultFactory resultFactory,
+            Listener listener) throws InterruptedException {
+        final int permits = maxInFlight;
+        final Semaphore inFlight = new Semaphore(permits);
+        final Delivery delivery = new Delivery(listener, inFlight, ordered);
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new TemplatesCacheImpl.DaemonThreadFactory("BatchTransformer"));
+        try {
+            int index = 0;
+            while (sources.hasNext()) {
+                final Source source = sources.next();
+                final int i = index++;
+                inFlight.acquire();
+                final Result result;
+                try {
+                    result = resultFactory.newResult(i, source);
+                } catch (Exception e) {
+                    delivery.deliver(i, source, null, e);
+                    continue;
+                }
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Exception error = null;
+                        try {
+                            transform(source, result);
+                        } catch (Exception e) {
+                            error = e;
+                        } catch (Error e) {
+                            error = new ExecutionException(e);
+                        }
+                        delivery.deliver(i, source, result, error);
+                    }
+                });
+            }
+            // wait for all outcomes to be reported
+            inFlight.acquire(permits);
+            inFlight.release(permits);
+        } finally {
+            pool.shutdownNow();
+        }
+        return delivery.failureCount;
+    }
+
+    private void transform(Source source, Result result) throws Exception {
+        Transformer t = transformerPool.borrowTransformer();
+        try {
+            t.transform(source, result);
+        } finally {
+            transformerPool.releaseTransformer(t);
+        }
+    }
+
+    /**
+     *  Reports outcomes to the listener, holding outcomes that complete out
+     *  of order until their predecessors are reported when ordered.  Each
+     *  outcome's in-flight permit is released when it is reported.
+     */
+    private static final class Delivery {
+        private final Listener listener;
+        private final Semaphore inFlight;
+        private final boolean ordered;
+        private final Map<Integer, Outcome> pending = new TreeMap<Integer, Outcome>();
+        private int next;
+        private int failureCount;
+
+        Delivery(Listener listener, Semaphore inFlight, boolean ordered) {
+            this.listener = listener;
+            this.inFlight = inFlight;
+            this.ordered = ordered;
+        }
+
+        synchronized void deliver(int index, Source source, Result result, Exception error) {
+            Outcome outcome = new Outcome(index, source, result, error);
+            if (! ordered) {
+                report(outcome);
+                return;
+            }
+            pending.put(index, outcome);
+            while (null != (outcome = pending.remove(next))) {
+                report(outcome);
+                next++;
+            }
+        }
+
+        private void report(Outcome outcome) {
+            try {
+                if (null == outcome.error) {
+                    listener.completed(outcome.index, outcome.source, outcome.result);
+                } else {
+                    failureCount++;
+                    listener.failed(outcome.index, outcome.source, outcome.result, outcome.error);
+                }
+            } catch (RuntimeException e) {
+                log.error("BatchTransformer Listener failed for document " + outcome.index, e);
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    private static final class Outcome {
+        private final int index;
+        private final Source source;
+        private final Result result;
+        private final Exception error;
+
+        Outcome(int index, Source source, Result result, Exception error) {
+            this.index = index;
+            this.source = source;
+            this.result = result;
+            this.error = error;
+        }
+    }
+
+}
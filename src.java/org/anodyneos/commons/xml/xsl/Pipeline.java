@@ -0,0 +1,277 @@
+package org.anodyneos.commons.xml.xsl;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.sax.TransformerHandler;
+
+import org.anodyneos.commons.xml.UnifiedResolver;
+import org.anodyneos.commons.xml.sax.XMLReaderPool;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ *  A reusable chain of cached stylesheets and SAX filters, executed as a
+ *  single streaming SAX pipeline without intermediate trees or strings.
+ *  Pipelines are created by <code>TemplatesCache.newPipeline()</code>:
+ *
+ *  <pre>
+ *      Pipeline pipeline = templatesCache.newPipeline()
+ *              .stylesheet(new URI("classpath:/xsl/normalize.xsl"))
+ *              .stylesheet(new URI("classpath:/xsl/render.xsl"))
+ *              .filter(new Pipeline.FilterFactory() {
+ *                  public XMLFilterImpl newFilter() {
+ *                      return new StripNamespaceFilter();
+ *                  }
+ *              })
+ *              .build();
+ *
+ *      pipeline.transform(new StreamSource(in), new StreamResult(out));
+ *  </pre>
+ *
+ *  <p>
+ *      A <code>Pipeline</code> is immutable and thread safe; each call to
+ *      <code>transform()</code> creates a new chain of
+ *      <code>TransformerHandler</code>s and filters.  Stylesheets are looked
+ *      up in the <code>TemplatesCache</code> on each call, so modified
+ *      stylesheets are picked up according to the cache's settings.
+ *  </p>
+ *  <p>
+ *      Stylesheet stages use the cache's <code>ErrorListener</code> and
+ *      <code>UnifiedResolver</code>.  When the last stage is a filter, its
+ *      output is serialized to the <code>Result</code> by an identity
+ *      transformation, unless the <code>Result</code> is a
+ *      <code>SAXResult</code>.
+ *  </p>
+ */
+public class Pipeline {
+
+    /**
+     *  Creates a new filter for each execution of a pipeline, since
+     *  <code>XMLFilterImpl</code>s are generally not thread safe.  Filters
+     *  are used in push mode: they receive events as a
+     *  <code>ContentHandler</code> and forward them to their
+     *  <code>ContentHandler</code>.
+     */
+    public interface FilterFactory {
+        XMLFilterImpl newFilter();
+    }
+
+    private final TemplatesCache templatesCache;
+    private final List<Stage> stages;
+    private final XMLReaderPool readerPool;
+
+    private Pipeline(TemplatesCache templatesCache, List<Stage> stages) {
+        this.templatesCache = templatesCache;
+        this.stages = stages;
+        this.readerPool = new XMLReaderPool(templatesCache.getSAXParserFactory());
+    }
+
+    /**
+     *  Transforms the source through each stage of the pipeline.
+     */
+    public void transform(Source source, Result result) throws TransformerException, IOException {
+        transform(source, result, Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     *  Transforms the source through each stage of the pipeline.
+     *
+     *  @param parameters Parameters set on every stylesheet stage, in
+     *         addition to those given when the stage was added.
+     */
+    public void transform(Source source, Result result, Map<String, ?> parameters)
+    throws TransformerException, IOException {
+        ContentHandler head = newChain(result, parameters);
+        if (source instanceof DOMSource) {
+            Transformer identity = templatesCache.getTransformer();
+            identity.transform(source, toResult(head));
+        } else {
+            parse(source, head);
+        }
+    }
+
+    /**
+     *  Builds the chain from the last stage to the first, returning the
+     *  handler that receives the input document.
+     */
+    private ContentHandler newChain(Result result, Map<String, ?> parameters)
+    throws TransformerException, IOException {
+        // the handler receiving the output of the current stage, or null if
+        // the current stage writes directly to the result
+        ContentHandler next = null;
+        if (stages.isEmpty() || stages.get(stages.size() - 1) instanceof FilterStage) {
+            if (result instanceof SAXResult) {
+                next = ((SAXResult) result).getHandler();
+            } else {
+                // serialize the output of the last filter
+                TransformerHandler identity = templatesCache.getTransformerHandler();
+                configure(identity);
+                identity.setResult(result);
+                next = identity;
+            }
+        }
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            Stage stage = stages.get(i);
+            if (stage instanceof StylesheetStage) {
+                StylesheetStage ss = (StylesheetStage) stage;
+                TransformerHandler th = templatesCache.getTransformerHandler(ss.uri);
+                configure(th);
+                setParameters(th.getTransformer(), ss.parameters);
+                setParameters(th.getTransformer(), parameters);
+                th.setResult(null == next ? result : toResult(next));
+                next = th;
+            } else {
+                XMLFilterImpl filter = ((FilterStage) stage).factory.newFilter();
+                filter.setContentHandler(next);
+                next = filter;
+            }
+        }
+        return next;
+    }
+
+    private void configure(TransformerHandler th) {
+        Transformer t = th.getTransformer();
+        ErrorListener errorListener = templatesCache.getErrorListener();
+        if (null != errorListener) {
+            t.setErrorListener(errorListener);
+        }
+        t.setURIResolver(templatesCache.getUnifiedResolver());
+    }
+
+    private static void setParameters(Transformer t, Map<String, ?> parameters) {
+        for (Map.Entry<String, ?> e : parameters.entrySet()) {
+            t.setParameter(e.getKey(), e.getValue());
+        }
+    }
+
+    private static SAXResult toResult(ContentHandler handler) {
+        SAXResult result = new SAXResult(handler);
+        if (handler instanceof LexicalHandler) {
+            result.setLexicalHandler((LexicalHandler) handler);
+        }
+        return result;
+    }
+
+    private void parse(Source source, ContentHandler head) throws TransformerException, IOException {
+        InputSource inputSource = SAXSource.sourceToInputSource(source);
+        if (null == inputSource) {
+            throw new TransformerException("Unsupported Source: " + source.getClass().getName());
+        }
+        XMLReader reader = source instanceof SAXSource ? ((SAXSource) source).getXMLReader() : null;
+        XMLReader pooled = null;
+        try {
+            if (null == reader) {
+                reader = pooled = readerPool.borrowReader();
+            }
+            reader.setContentHandler(head);
+            if (head instanceof LexicalHandler) {
+                try {
+                    reader.setProperty("http://xml.org/sax/properties/lexical-handler", head);
+                } catch (SAXNotRecognizedException e) {
+                    // comments and CDATA sections will not be passed on
+                } catch (SAXNotSupportedException e) {
+                    // comments and CDATA sections will not be passed on
+                }
+            }
+            ErrorHandler errorHandler = templatesCache.getErrorHandler();
+            if (null != errorHandler) {
+                reader.setErrorHandler(errorHandler);
+            }
+            UnifiedResolver resolver = templatesCache.getUnifiedResolver();
+            if (null != resolver) {
+                reader.setEntityResolver(resolver);
+            }
+            reader.parse(inputSource);
+        } catch (SAXException e) {
+            if (e.getException() instanceof TransformerException) {
+                throw (TransformerException) e.getException();
+            }
+            throw new TransformerException(e);
+        } finally {
+            readerPool.releaseReader(pooled);
+        }
+    }
+
+    private interface Stage {
+    }
+
+    private static final class StylesheetStage implements Stage {
+        private final URI uri;
+        private final Map<String, Object> parameters;
+        StylesheetStage(URI uri, Map<String, Object> parameters) {
+            this.uri = uri;
+            this.parameters = parameters;
+        }
+    }
+
+    private static final class FilterStage implements Stage {
+        private final FilterFactory factory;
+        FilterStage(FilterFactory factory) {
+            this.factory = factory;
+        }
+    }
+
+    /**
+     *  Builds a <code>Pipeline</code>.  Stages are executed in the order in
+     *  which they are added.  Builders are not thread safe.
+     */
+    public static class Builder {
+
+        private final TemplatesCache templatesCache;
+        private final List<Stage> stages = new ArrayList<Stage>();
+
+        Builder(TemplatesCache templatesCache) {
+            this.templatesCache = templatesCache;
+        }
+
+        /**
+         *  Adds a stage that transforms using the cached stylesheet.
+         */
+        public Builder stylesheet(URI uri) {
+            return stylesheet(uri, Collections.<String, Object>emptyMap());
+        }
+
+        /**
+         *  Adds a stage that transforms using the cached stylesheet, with the
+         *  given parameters.
+         */
+        public Builder stylesheet(URI uri, Map<String, ?> parameters) {
+            stages.add(new StylesheetStage(uri, new HashMap<String, Object>(parameters)));
+            return this;
+        }
+
+        /**
+         *  Adds a stage that filters using a new filter from the factory.
+         */
+        public Builder filter(FilterFactory factory) {
+            stages.add(new FilterStage(factory));
+            return this;
+        }
+
+        public Pipeline build() {
+            return new Pipeline(templatesCache, new ArrayList<Stage>(stages));
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.anodyneos.commons.xml.xsl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  Results of <code>TemplatesCache.precompile()</code>: the compile time and
+ *  failure, if any, for each stylesheet.
+ */
+public class PrecompileReport {
+
+    private final List<Result> results;
+    private final long elapsedTime;
+
+    PrecompileReport(List<Result> results, long elapsedTime) {
+        this.results = Collections.unmodifiableList(results);
+        this.elapsedTime = elapsedTime;
+    }
+
+    /**
+     * @return The results for each stylesheet, in the order requested.
+     */
+    public List<Result> getResults() {
+        return results;
+    }
+
+    /**
+     * @return The results for stylesheets that failed to compile.
+     */
+    public List<Result> getFailures() {
+        List<Result> failures = new ArrayList<Result>();
+        for (Result result : results) {
+            if (! result.isSuccess()) {
+                failures.add(result);
+            }
+        }
+        return failures;
+    }
+
+    public int getSuccessCount() {
+        return results.size() - getFailureCount();
+    }
+
+    public int getFailureCount() {
+        int count = 0;
+        for (Result result : results) {
+            if (! result.isSuccess()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The wall clock time in milliseconds taken to compile all
+     *         stylesheets.
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Precompiled ").append(getSuccessCount()).append(" stylesheets with ")
+                .append(getFailureCount()).append(" failures in ").append(elapsedTime).append("ms");
+        for (Result result : results) {
+            sb.append("\n    ").append(result);
+        }
+        return sb.toString();
+    }
+
+    public static class Result {
+
+        private final String systemId;
+        private final long compileTime;
+        private final Exception error;
+
+        Result(String systemId, long compileTime, Exception error) {
+            this.systemId = systemId;
+            this.compileTime = compileTime;
+            this.error = error;
+        }
+
+        public String getSystemId() {
+            return systemId;
+        }
+
+        /**
+         * @return The time in milliseconds taken to compile the stylesheet.
+         */
+        public long getCompileTime() {
+            return compileTime;
+        }
+
+        /**
+         * @return The reason the stylesheet failed to compile, or null.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return null == error;
+        }
+
+        @Override
+        public String toString() {
+            if (isSuccess()) {
+                return systemId + ": " + compileTime + "ms";
+            } else {
+                return systemId + ": FAILED after " + compileTime + "ms: " + error;
+            }
+        }
+    }
+
+}
@@ -1,8 +1,11 @@
 package org.anodyneos.commons.xml.xsl;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
+import java.util.Collection;
+import java.util.concurrent.Executor;
 
 import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.ErrorListener;
@@ -18,6 +21,12 @@ import org.xml.sax.XMLFilter;
 
 public interface TemplatesCache {
 
+    /**
+     * Value for <code>setCheckInterval()</code> indicating that cached
+     * stylesheets should never be checked for modifications.
+     */
+    long CHECK_NEVER = -1;
+
     void setTransformerFactory(TransformerFactory tFactory);
     TransformerFactory getTransformerFactory();
 
@@ -39,6 +48,47 @@ public interface TemplatesCache {
     void clearCache();
     int getCacheSize();
 
+    void setMaxCacheEntries(int maxCacheEntries);
+    int getMaxCacheEntries();
+
+    void setMaxCacheWeight(long maxCacheWeight);
+    long getMaxCacheWeight();
+
+    long getCacheWeight();
+    long getEvictionCount();
+
+    TemplatesCacheStats getStatistics();
+    void resetStatistics();
+
+    void setCheckInterval(long checkInterval);
+    long getCheckInterval();
+
+    void setBackgroundCheckInterval(long backgroundCheckInterval);
+    long getBackgroundCheckInterval();
+
+    void setBackgroundRecompile(boolean backgroundRecompile);
+    boolean getBackgroundRecompile();
+
+    void setAsyncRecompile(boolean asyncRecompile);
+    boolean getAsyncRecompile();
+
+    void setExecutor(Executor executor);
+    Executor getExecutor();
+
+    void setPersistentCacheDirectory(File directory);
+    File getPersistentCacheDirectory();
+
+    void setTransformerPoolSize(int transformerPoolSize);
+    int getTransformerPoolSize();
+
+    void setDeduplicationEnabled(boolean deduplicationEnabled);
+    boolean getDeduplicationEnabled();
+
+    // PRECOMPILATION
+
+    PrecompileReport precompile(Collection<URI> uris) throws InterruptedException;
+    PrecompileReport precompile(URI base, String pattern) throws IOException, InterruptedException;
+
     // FILTERS
 
     XMLFilter getXMLFilter(Source source) throws TransformerConfigurationException, IOException;
@@ -59,4 +109,14 @@ public interface TemplatesCache {
     Transformer getTransformer(URI uri) throws TransformerConfigurationException, IOException;
     Transformer getTransformer(URL url) throws TransformerConfigurationException, IOException;
 
+    // PIPELINES
+
+    Pipeline.Builder newPipeline();
+
+    // TRANSFORMER POOLS
+
+    TransformerPool getTransformerPool(Source source) throws TransformerConfigurationException, IOException;
+    TransformerPool getTransformerPool(URI uri) throws TransformerConfigurationException, IOException;
+    TransformerPool getTransformerPool(URL url) throws TransformerConfigurationException, IOException;
+
 }
@@ -1,31 +1,66 @@
 package org.anodyneos.commons.xml.xsl;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.JarURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.regex.Pattern;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
 import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TransformerHandler;
 
 import org.anodyneos.commons.xml.UnifiedResolver;
+import org.anodyneos.commons.xml.sax.XMLReaderPool;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.w3c.dom.Document;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
@@ -37,13 +72,50 @@ import org.xml.sax.XMLReader;
  *  Cache stylesheets.
  *
  *  <p>
- *      The <code>Templates</code> cache should be a configurable LRU cache.
- *      Not yet implemented.  For now, all <code>Templates</code> objects are
- *      cached until <code>clear()</code> is called.
+ *      The <code>Templates</code> cache is an LRU cache that may be bounded
+ *      by number of entries (<code>setMaxCacheEntries()</code>) and/or by an
+ *      approximate weight (<code>setMaxCacheWeight()</code>).  The weight of
+ *      an entry is the size in bytes of the stylesheet source that was
+ *      compiled, or zero if the size is not known.  By default, the cache is
+ *      unbounded and all <code>Templates</code> objects are cached until
+ *      <code>clearCache()</code> is called.
  *  </p>
  *  <p>
- *      Transformer caching/pooling is not provided.  Mike Kay provided this
- *      response to someones question:
+ *      This class is thread safe.  Cache hits do not acquire any global
+ *      lock, and concurrent requests for a stylesheet that is not yet cached
+ *      (or is stale) wait for a single compilation rather than each compiling
+ *      the stylesheet.
+ *  </p>
+ *  <p>
+ *      By default, stylesheets are checked for modifications on the request
+ *      thread (see <code>setCheckInterval()</code>.)  Alternatively, a
+ *      background thread may periodically check all cached stylesheets and
+ *      recompile or invalidate modified ones (see
+ *      <code>setBackgroundCheckInterval()</code>), in which case request
+ *      threads never check for modifications.
+ *  </p>
+ *  <p>
+ *      When <code>setAsyncRecompile(true)</code> is used, a request that
+ *      finds a modified stylesheet is served the previously compiled
+ *      <code>Templates</code> while the stylesheet is recompiled using the
+ *      configured <code>Executor</code>.  The new <code>Templates</code>
+ *      replaces the old one when ready.  If recompilation fails, the old
+ *      <code>Templates</code> remains in use until the stylesheet is modified
+ *      again and the failure is reported to the <code>ErrorListener</code>.
+ *  </p>
+ *  <p>
+ *      Hit, miss, modification check, eviction, compile time, and
+ *      <code>Transformer</code> creation statistics are available from
+ *      <code>getStatistics()</code>, and may be exposed through JMX using
+ *      <code>TemplatesCacheMonitor</code>.
+ *  </p>
+ *  <p>
+ *      The <code>getTransformer()</code> methods always create a new
+ *      <code>Transformer</code>.  For small, frequent transformations,
+ *      <code>getTransformerPool()</code> provides opt-in pooling of
+ *      <code>Transformer</code>s that are <code>reset()</code> between uses.
+ *      Pooling should be used with care.  Mike Kay provided this response to
+ *      someones question:
  *  </p>
  *  <pre>
  *  http://www.biglist.com/lists/xsl-list/archives/200109/msg00581.html
@@ -76,13 +148,39 @@ import org.xml.sax.XMLReader;
 
 public class TemplatesCacheImpl implements TemplatesCache {
 
-    private ErrorListener errorListener;
-    private ErrorHandler errorHandler;
-    private Cache cache = new Cache();
-    private boolean cacheEnabled = true;
-    private TransformerFactory tFactory;
-    private SAXParserFactory saxParserFactory;
-    private UnifiedResolver resolver;
+    private static final Log log = LogFactory.getLog(TemplatesCacheImpl.class);
+
+    private static final Dependency[] NO_DEPENDENCIES = new Dependency[0];
+
+    /**
+     * The maximum number of stylesheets for which compile statistics are
+     * kept.  Statistics of the least recently compiled stylesheets are
+     * discarded beyond this limit; compile totals include them.
+     */
+    public static final int MAX_COMPILE_STATS = 1000;
+
+    private volatile ErrorListener errorListener;
+    private volatile ErrorHandler errorHandler;
+    private final Cache cache = new Cache();
+    private final LastModifiedCache lastModifiedCache = new LastModifiedCache();
+    private final DependencyRecorder dependencyRecorder = new DependencyRecorder();
+    private final Statistics statistics = new Statistics();
+    private volatile boolean cacheEnabled = true;
+    private volatile int maxCacheEntries = 0;
+    private volatile long maxCacheWeight = 0;
+    private volatile long checkInterval = 0;
+    private volatile long backgroundCheckInterval = 0;
+    private volatile boolean backgroundRecompile = true;
+    private ScheduledExecutorService backgroundChecker;
+    private volatile boolean asyncRecompile = false;
+    private volatile Executor executor;
+    private ExecutorService defaultExecutor;
+    private volatile TemplatesStore templatesStore;
+    private volatile ContentIndex contentIndex;
+    private volatile int transformerPoolSize = TransformerPool.DEFAULT_MAX_IDLE;
+    private volatile TransformerFactory tFactory;
+    private volatile XMLReaderPool readerPool;
+    private volatile UnifiedResolver resolver;
 
     // CONSTRUCTORS
     public TemplatesCacheImpl() {
@@ -94,16 +192,23 @@ public class TemplatesCacheImpl implements TemplatesCache {
 
     /**
      * NOTE: The provided TransformerFactory will be re-configured
-     * to use the UnifiedResolver (if or when set.)
+     * to use the UnifiedResolver (if or when set.)  The factory's URIResolver
+     * is replaced with one that delegates to the UnifiedResolver and records
+     * the stylesheets included or imported by each compiled stylesheet.
      *
      * @param tFactory The TransformerFactory to reconfigure and use.
      */
     @Override
     public void setTransformerFactory(TransformerFactory tFactory) {
-        if (null != resolver) {
-            tFactory.setURIResolver(resolver);
-        }
+        tFactory.setURIResolver(dependencyRecorder);
         this.tFactory = tFactory;
+        if (null != templatesStore) {
+            // stored Templates are specific to the TransformerFactory
+            setPersistentCacheDirectory(templatesStore.getDirectory());
+        }
+        if (null != contentIndex) {
+            contentIndex = new ContentIndex();
+        }
     }
 
     @Override
@@ -113,7 +218,9 @@ public class TemplatesCacheImpl implements TemplatesCache {
 
     /**
      * NOTE: The provided SAXParserFactory will be re-configured
-     * to disable validation and enable namespaces.
+     * to disable validation and enable namespaces.  Readers use the
+     * UnifiedResolver to resolve entities, and therefore share its
+     * GrammarCache, if any.
      *
      * @param saxParserFactory The SAXParserFactory to reconfigure and use.
      */
@@ -121,18 +228,18 @@ public class TemplatesCacheImpl implements TemplatesCache {
     public void setSAXParserFactory(SAXParserFactory saxParserFactory) {
         saxParserFactory.setValidating(false);
         saxParserFactory.setNamespaceAware(true);
-        this.saxParserFactory = saxParserFactory;
+        this.readerPool = new XMLReaderPool(saxParserFactory);
     }
 
     @Override
     public SAXParserFactory getSAXParserFactory() {
-        return saxParserFactory;
+        return readerPool.getSAXParserFactory();
     }
 
     @Override
     public void setUnifiedResolver(UnifiedResolver resolver) {
         this.resolver = resolver;
-        tFactory.setURIResolver(resolver);
+        tFactory.setURIResolver(dependencyRecorder);
     }
 
     @Override
@@ -171,12 +278,434 @@ public class TemplatesCacheImpl implements TemplatesCache {
     @Override
     public void clearCache() {
         cache.clear();
+        lastModifiedCache.clear();
+        ContentIndex index = contentIndex;
+        if (null != index) {
+            index.clear();
+        }
     }
     @Override
     public int getCacheSize() {
         return cache.size();
     }
 
+    /**
+     * Sets the maximum number of <code>Templates</code> to cache.  When the
+     * limit is exceeded, the least recently used entries are evicted down to
+     * 90% of the limit.
+     *
+     * @param maxCacheEntries The maximum number of entries, or zero for no limit.
+     */
+    @Override
+    public void setMaxCacheEntries(int maxCacheEntries) {
+        this.maxCacheEntries = maxCacheEntries;
+        cache.evict();
+    }
+
+    @Override
+    public int getMaxCacheEntries() {
+        return maxCacheEntries;
+    }
+
+    /**
+     * Sets the maximum total weight of cached <code>Templates</code>.  When
+     * the limit is exceeded, the least recently used entries are evicted down
+     * to 90% of the limit.
+     *
+     * @param maxCacheWeight The maximum weight (approximately the number of
+     *        bytes of stylesheet source), or zero for no limit.
+     */
+    @Override
+    public void setMaxCacheWeight(long maxCacheWeight) {
+        this.maxCacheWeight = maxCacheWeight;
+        cache.evict();
+    }
+
+    @Override
+    public long getMaxCacheWeight() {
+        return maxCacheWeight;
+    }
+
+    @Override
+    public long getCacheWeight() {
+        return cache.weight();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.evictionCount.get();
+    }
+
+    @Override
+    public TemplatesCacheStats getStatistics() {
+        return statistics.snapshot();
+    }
+
+    /**
+     * Resets all statistics, including the eviction count, to zero.
+     */
+    @Override
+    public void resetStatistics() {
+        statistics.reset();
+    }
+
+    /**
+     * Sets how often cached stylesheets are checked for modifications.  Zero
+     * (the default) checks on every request; a positive value checks each
+     * stylesheet at most once per interval; <code>CHECK_NEVER</code>
+     * disables checks, so that cache hits never touch the stylesheet
+     * resource.
+     *
+     * @param checkInterval The interval in milliseconds, zero, or
+     *        <code>CHECK_NEVER</code>.
+     */
+    @Override
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    @Override
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Sets the interval at which a background thread checks all cached
+     * stylesheets for modifications.  While enabled, the
+     * <code>checkInterval</code> is ignored and request threads never check
+     * for modifications.
+     *
+     * @param backgroundCheckInterval The interval in milliseconds, or zero
+     *        (the default) to disable background checks.
+     */
+    @Override
+    public synchronized void setBackgroundCheckInterval(long backgroundCheckInterval) {
+        if (null != backgroundChecker) {
+            backgroundChecker.shutdownNow();
+            backgroundChecker = null;
+        }
+        this.backgroundCheckInterval = backgroundCheckInterval;
+        if (backgroundCheckInterval > 0) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    new DaemonThreadFactory("TemplatesCache background checker"));
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkAll();
+                }
+            }, backgroundCheckInterval, backgroundCheckInterval, TimeUnit.MILLISECONDS);
+            backgroundChecker = executor;
+        }
+    }
+
+    @Override
+    public long getBackgroundCheckInterval() {
+        return backgroundCheckInterval;
+    }
+
+    /**
+     * Determines whether the background checker recompiles modified
+     * stylesheets (the default) or only removes them from the cache.
+     */
+    @Override
+    public void setBackgroundRecompile(boolean backgroundRecompile) {
+        this.backgroundRecompile = backgroundRecompile;
+    }
+
+    @Override
+    public boolean getBackgroundRecompile() {
+        return backgroundRecompile;
+    }
+
+    /**
+     * Determines whether modified stylesheets detected by request threads are
+     * recompiled asynchronously.  When enabled, the previously compiled
+     * <code>Templates</code> is returned until recompilation completes.
+     * Stylesheets that are not yet cached are always compiled by the
+     * requesting thread.
+     */
+    @Override
+    public void setAsyncRecompile(boolean asyncRecompile) {
+        this.asyncRecompile = asyncRecompile;
+    }
+
+    @Override
+    public boolean getAsyncRecompile() {
+        return asyncRecompile;
+    }
+
+    /**
+     * Sets the <code>Executor</code> used for asynchronous recompilation.  If
+     * not set, a pool of daemon threads is created when first needed.
+     */
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the <code>Executor</code> used for asynchronous recompilation.
+     */
+    @Override
+    public synchronized Executor getExecutor() {
+        if (null != executor) {
+            return executor;
+        }
+        if (null == defaultExecutor) {
+            defaultExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("TemplatesCache compiler"));
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Sets a directory in which compiled stylesheets are stored, so that
+     * they may be reloaded rather than recompiled after a restart.  Only
+     * <code>Serializable</code> <code>Templates</code>, such as those
+     * created by XSLTC (the JDK default), are stored.  A stored stylesheet
+     * is used only if the content of the stylesheet and of each stylesheet
+     * it includes or imports is unchanged.
+     *
+     * <p>WARNING: stored stylesheets are deserialized; the directory must
+     * not be writable by untrusted users.</p>
+     *
+     * @param directory The directory, or null (the default) to disable.
+     */
+    @Override
+    public void setPersistentCacheDirectory(File directory) {
+        if (null == directory) {
+            templatesStore = null;
+        } else {
+            templatesStore = new TemplatesStore(directory, tFactory.getClass().getName());
+        }
+    }
+
+    @Override
+    public File getPersistentCacheDirectory() {
+        TemplatesStore store = templatesStore;
+        return null == store ? null : store.getDirectory();
+    }
+
+    /**
+     * Sets the maximum number of idle <code>Transformer</code>s retained by
+     * each <code>TransformerPool</code> created after this method is called.
+     */
+    @Override
+    public void setTransformerPoolSize(int transformerPoolSize) {
+        this.transformerPoolSize = transformerPoolSize;
+    }
+
+    @Override
+    public int getTransformerPoolSize() {
+        return transformerPoolSize;
+    }
+
+    /**
+     * Enables sharing of a single compiled <code>Templates</code> between
+     * cache entries for stylesheets with identical content, such as the same
+     * stylesheet served under several URIs.  Stylesheets are identical if
+     * their content and the content of each stylesheet they include or
+     * import are identical.  A stylesheet without includes or imports that is
+     * identical to a cached one is not compiled at all.
+     *
+     * <p>
+     * A shared <code>Templates</code> retains the base URI of the stylesheet
+     * it was compiled from, so stylesheets that may resolve relative URIs at
+     * transformation time, for example with <code>document()</code>, are
+     * only shared between URIs in the same directory.  Stylesheets whose
+     * includes could not all be recorded are not shared.
+     * </p>
+     *
+     * @param deduplicationEnabled True to share identical Templates.
+     */
+    @Override
+    public void setDeduplicationEnabled(boolean deduplicationEnabled) {
+        if (! deduplicationEnabled) {
+            contentIndex = null;
+        } else if (null == contentIndex) {
+            contentIndex = new ContentIndex();
+        }
+    }
+
+    @Override
+    public boolean getDeduplicationEnabled() {
+        return null != contentIndex;
+    }
+
+    // PRECOMPILATION
+
+    /**
+     * Compiles and caches the given stylesheets in parallel, using one
+     * thread per available processor.  Stylesheets that are already cached
+     * and have not been modified are not recompiled.
+     *
+     * @param uris The URIs of the stylesheets to compile.
+     * @return A report of compile times and failures for each stylesheet.
+     * @throws InterruptedException if interrupted while waiting for
+     *         compilation to complete.
+     */
+    @Override
+    public PrecompileReport precompile(Collection<URI> uris) throws InterruptedException {
+        long started = System.nanoTime();
+        List<PrecompileReport.Result> results = new ArrayList<PrecompileReport.Result>(uris.size());
+        if (uris.isEmpty()) {
+            return new PrecompileReport(results, 0);
+        }
+        int threads = Math.min(uris.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory("TemplatesCache precompiler"));
+        try {
+            List<Future<PrecompileReport.Result>> futures = new ArrayList<Future<PrecompileReport.Result>>();
+            for (final URI uri : uris) {
+                futures.add(pool.submit(new Callable<PrecompileReport.Result>() {
+                    @Override
+                    public PrecompileReport.Result call() {
+                        long t0 = System.nanoTime();
+                        Exception error = null;
+                        try {
+                            getTemplates(uri);
+                        } catch (Exception e) {
+                            error = e;
+                        }
+                        return new PrecompileReport.Result(uri.toString(),
+                                (System.nanoTime() - t0) / 1000000, error);
+                    }
+                }));
+            }
+            for (Future<PrecompileReport.Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // the task catches all Exceptions
+                    throw (Error) e.getCause();
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return new PrecompileReport(results, (System.nanoTime() - started) / 1000000);
+    }
+
+    /**
+     * Compiles and caches, in parallel, all stylesheets found under the
+     * given base URI having a path relative to the base URI that matches
+     * the given pattern.  The base URI is resolved using the
+     * UnifiedResolver and must resolve to a <code>file:</code> directory or
+     * a directory within a <code>jar:</code> URL.  In the pattern,
+     * <code>*</code> matches any characters other than <code>/</code>,
+     * <code>**</code> matches any characters, and <code>?</code> matches
+     * a single character other than <code>/</code>.
+     *
+     * <p>Example: <code>precompile(new URI("classpath:///com/example/xsl/"), "**&#47;*.xsl")</code></p>
+     *
+     * @param base The URI of the directory to search.
+     * @param pattern The pattern to match relative paths against.
+     * @return A report of compile times and failures for each stylesheet.
+     * @throws IOException if the base URI cannot be resolved or searched.
+     * @throws InterruptedException if interrupted while waiting for
+     *         compilation to complete.
+     */
+    @Override
+    public PrecompileReport precompile(URI base, String pattern) throws IOException, InterruptedException {
+        if (! base.toString().endsWith("/")) {
+            try {
+                base = new URI(base.toString() + "/");
+            } catch (URISyntaxException e) {
+                // this should not happen
+                throw new Error(e);
+            }
+        }
+        URL url = null;
+        if (null != resolver) {
+            url = resolver.toURL(base);
+        }
+        if (null == url) {
+            if (null == resolver || resolver.isDefaultLookupEnabled()) {
+                url = new URL(base.toString());
+            } else {
+                throw new FileNotFoundException(base.toString());
+            }
+        }
+
+        Pattern regex = globToPattern(pattern);
+        List<String> paths = new ArrayList<String>();
+        if (url.getProtocol().equals("file")) {
+            File dir = toFile(url);
+            if (! dir.isDirectory()) {
+                throw new FileNotFoundException(url.toString());
+            }
+            listFiles(dir, "", regex, paths);
+        } else if (url.getProtocol().equals("jar")) {
+            JarURLConnection conn = (JarURLConnection) url.openConnection();
+            String prefix = conn.getEntryName();
+            prefix = null == prefix ? "" : prefix;
+            for (Enumeration<JarEntry> e = conn.getJarFile().entries(); e.hasMoreElements();) {
+                JarEntry entry = e.nextElement();
+                String name = entry.getName();
+                if (! entry.isDirectory() && name.startsWith(prefix)
+                        && regex.matcher(name.substring(prefix.length())).matches()) {
+                    paths.add(name.substring(prefix.length()));
+                }
+            }
+        } else {
+            throw new IOException("Unable to search for stylesheets in '" + url + "'; only file: and jar: URLs are supported.");
+        }
+
+        Collections.sort(paths);
+        List<URI> uris = new ArrayList<URI>(paths.size());
+        for (String path : paths) {
+            try {
+                // base may be opaque (jar:), so append rather than resolve
+                uris.add(new URI(base.toString() + new URI(null, null, path, null).getRawPath()));
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid path '" + path + "': " + e.getMessage());
+            }
+        }
+        return precompile(uris);
+    }
+
+    private static void listFiles(File dir, String relative, Pattern regex, List<String> paths) {
+        File[] files = dir.listFiles();
+        if (null == files) {
+            return;
+        }
+        for (File file : files) {
+            String path = relative + file.getName();
+            if (file.isDirectory()) {
+                listFiles(file, path + "/", regex, paths);
+            } else if (regex.matcher(path).matches()) {
+                paths.add(path);
+            }
+        }
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                sb.append(Pattern.quote(glob.substring(start, i)));
+                if (c == '?') {
+                    sb.append("[^/]");
+                } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        // "**/" matches zero or more directories
+                        i++;
+                        sb.append("(?:.*/)?");
+                    } else {
+                        sb.append(".*");
+                    }
+                } else {
+                    sb.append("[^/]*");
+                }
+                start = i + 1;
+            }
+        }
+        sb.append(Pattern.quote(glob.substring(start)));
+        return Pattern.compile(sb.toString());
+    }
+
     // GET XML FILTER
     @Override
     public XMLFilter getXMLFilter(Source source)
@@ -247,7 +776,7 @@ public class TemplatesCacheImpl implements TemplatesCache {
     @Override
     public Transformer getTransformer(Source source)
     throws TransformerConfigurationException, IOException {
-        Transformer t = getTemplates(source).newTransformer();
+        Transformer t = newTransformer(getTemplates(source));
         if (null != errorListener) {
             t.setErrorListener(errorListener);
         }
@@ -263,7 +792,7 @@ public class TemplatesCacheImpl implements TemplatesCache {
     @Override
     public Transformer getTransformer(URI uri)
     throws TransformerConfigurationException, IOException {
-        Transformer t = getTemplates(uri).newTransformer();
+        Transformer t = newTransformer(getTemplates(uri));
         if (null != errorListener) {
             t.setErrorListener(errorListener);
         }
@@ -279,7 +808,7 @@ public class TemplatesCacheImpl implements TemplatesCache {
     @Override
     public Transformer getTransformer(URL url)
     throws TransformerConfigurationException, IOException {
-        Transformer t = getTemplates(url).newTransformer();
+        Transformer t = newTransformer(getTemplates(url));
         if (null != errorListener) {
             t.setErrorListener(errorListener);
         }
@@ -288,112 +817,281 @@ public class TemplatesCacheImpl implements TemplatesCache {
     }
 
     /**
-     *  Get templates.
-     *
-     *  @exception FileNotFoundException
-     *  @exception IOException
-     *  @exception TransformerConfigurationException
+     *  Creates a new <code>Transformer</code>, recording the time taken.
      */
-    private Templates getTemplates(String systemId, URL url)
-    throws IOException, TransformerConfigurationException {
-        Templates templates;
-        Entry oldEntry = cache.get(systemId);
-        InputStream is = null;
-        try {
-            if(url.getProtocol().equals("file")) {
-                File resourceFile = new File(URLDecoder.decode(url.getFile(), "UTF-8"));
-                long lastModified = resourceFile.lastModified();
-                if (null == oldEntry || (lastModified > oldEntry.lastModified)) {
-                    is = new FileInputStream(resourceFile);
-                    templates = tFactory.newTemplates(newSource(is, systemId));
-                    cache.put(systemId, new Entry(templates, lastModified));
-                } else {
-                    templates = oldEntry.templates;
-                }
-            } else {
-                URLConnection conn = url.openConnection();
-                is = conn.getInputStream();
-                long lastModified = conn.getLastModified();
-                if (null == oldEntry || (lastModified > oldEntry.lastModified)) {
-                    templates = tFactory.newTemplates(newSource(is, systemId));
-                    cache.put(systemId, new Entry(templates, lastModified));
-                } else {
-                    templates = oldEntry.templates;
-                }
-            }
-        } finally {
-            try { if(is != null) is.close(); } catch (Exception e) { /* no op */ }
-        }
-        return templates;
+    Transformer newTransformer(Templates templates) throws TransformerConfigurationException {
+        long start = System.nanoTime();
+        Transformer t = templates.newTransformer();
+        statistics.transformerCreated(System.nanoTime() - start);
+        return t;
     }
 
-    private Templates getTemplates(Source source)
-    throws TransformerConfigurationException, IOException {
-        String systemId = source.getSystemId();
-        Entry entry = null;
-        Templates templates = null;
+    // PIPELINES
 
-        // don't bother with lastModified since we don't know what it is
-        entry = cache.get(systemId);
-        if (null != entry) {
-            templates = entry.templates;
-        } else {
-            templates = tFactory.newTemplates(source);
-            cache.put(systemId, new Entry(templates));
-        }
-        return templates;
+    /**
+     *  Returns a builder for a <code>Pipeline</code> of stylesheets from this
+     *  cache and SAX filters.
+     */
+    @Override
+    public Pipeline.Builder newPipeline() {
+        return new Pipeline.Builder(this);
+    }
+
+    // GET TRANSFORMER POOL
+
+    /**
+     *  Returns the <code>TransformerPool</code> for the current version of
+     *  the stylesheet.  When the stylesheet is recompiled, a new pool is used.
+     */
+    @Override
+    public TransformerPool getTransformerPool(Source source)
+    throws TransformerConfigurationException, IOException {
+        return getTransformerPool(getEntry(source));
     }
 
     /**
+     *  Returns the <code>TransformerPool</code> for the current version of
+     *  the stylesheet.  When the stylesheet is recompiled, a new pool is used.
+     *
      *  @exception FileNotFoundException
      *  @exception IOException
      *  @exception TransformerConfigurationException
      */
-    private Templates getTemplates(URI uri)
+    @Override
+    public TransformerPool getTransformerPool(URI uri)
     throws TransformerConfigurationException, IOException {
-        String systemId = uri.toString();
-        Templates templates = null;
-
-        URL url = null;
-        // try resolver first
-        if (null != resolver) {
-            url = resolver.toURL(uri);
-        }
-        if(url != null) {
-            templates = getTemplates(systemId, url);
-        } else if (resolver.isDefaultLookupEnabled()) {
-            // try default resolver
-            url = new URL(uri.toString());
-            templates = getTemplates(systemId, url);
-        } else {
-            // external lookups disabled and not found
-            throw new FileNotFoundException(uri.toString());
-        }
-
-        return templates;
+        return getTransformerPool(getEntry(uri));
     }
 
     /**
+     *  Returns the <code>TransformerPool</code> for the current version of
+     *  the stylesheet.  When the stylesheet is recompiled, a new pool is used.
+     *
      *  @exception FileNotFoundException
      *  @exception IOException
      *  @exception TransformerConfigurationException
      */
-    private Templates getTemplates(URL url)
+    @Override
+    public TransformerPool getTransformerPool(URL url)
     throws TransformerConfigurationException, IOException {
-        try {
-            return getTemplates(new URI(url.toExternalForm()));
-        } catch (URISyntaxException e) {
-            // this should not happen
-            throw new Error(e);
-        }
+        return getTransformerPool(getEntry(url));
     }
 
-    /***************/
-    public Transformer getAssociatedTransformer(Document doc) {
-        /*
-        ArrayList stylesheets = new ArrayList();
-        // loop through all PIs.  Return latest match.
-        try {
+    /**
+     *  Get templates.
+     *
+     *  @exception FileNotFoundException
+     *  @exception IOException
+     *  @exception TransformerConfigurationException
+     */
+    private Entry getEntry(final String systemId, final URL url, Entry oldEntry)
+    throws IOException, TransformerConfigurationException {
+        if (null != oldEntry && ! isModified(oldEntry, url, checkInterval)) {
+            statistics.hitCount.incrementAndGet();
+            return oldEntry;
+        }
+        Callable<Entry> compiler = new Callable<Entry>() {
+            @Override
+            public Entry call() throws IOException, TransformerConfigurationException {
+                return newEntry(systemId, url);
+            }
+        };
+        if (null != oldEntry && asyncRecompile) {
+            compileAsync(systemId, oldEntry, compiler);
+            statistics.hitCount.incrementAndGet();
+            return oldEntry;
+        }
+        statistics.missCount.incrementAndGet();
+        return compile(systemId, oldEntry, compiler);
+    }
+
+    /**
+     *  Returns true if the entry should be checked for modifications now,
+     *  according to <code>checkInterval</code>.  If so, the entry is marked as
+     *  checked so that concurrent requests do not also check it.
+     */
+    private boolean isCheckDue(Entry entry) {
+        long interval = checkInterval;
+        if (backgroundCheckInterval > 0 || interval < 0) {
+            return false;
+        } else if (interval == 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - entry.lastChecked < interval) {
+            return false;
+        }
+        entry.lastChecked = now;
+        return true;
+    }
+
+    /**
+     *  Returns true if the stylesheet or any stylesheet it includes or imports
+     *  has been modified since the entry was compiled.  Last modified times
+     *  are shared between entries for up to <code>maxAge</code> milliseconds,
+     *  so that a stylesheet included by many others is checked only once per
+     *  check cycle.
+     *
+     *  @param entry The entry to check.
+     *  @param url The URL of the stylesheet.
+     *  @param maxAge The maximum age of shared last modified times.
+     */
+    private boolean isModified(Entry entry, URL url, long maxAge) throws IOException {
+        statistics.staleCheckCount.incrementAndGet();
+        if (hasChanged(entry, url, maxAge)) {
+            statistics.staleCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean hasChanged(Entry entry, URL url, long maxAge) throws IOException {
+        long failed = entry.refreshFailed;
+        if (lastModifiedCache.lastModified(url, maxAge) > Math.max(entry.lastModified, failed)) {
+            return true;
+        }
+        for (Dependency dependency : entry.dependencies) {
+            try {
+                if (lastModifiedCache.lastModified(dependency.url, maxAge) > Math.max(dependency.lastModified, failed)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                // recompile to report the problem, unless that already failed
+                if (0 == failed) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  Checks all cached stylesheets for modifications, recompiling or
+     *  removing those that have been modified.  Called by the background
+     *  checker.
+     */
+    private void checkAll() {
+        for (Map.Entry<String, Entry> e : cache.map.entrySet()) {
+            final String systemId = e.getKey();
+            final Entry entry = e.getValue();
+            if (null == entry.url) {
+                continue;
+            }
+            try {
+                entry.lastChecked = System.currentTimeMillis();
+                if (! isModified(entry, entry.url, backgroundCheckInterval)) {
+                    continue;
+                }
+                if (backgroundRecompile) {
+                    long started = System.currentTimeMillis();
+                    try {
+                        compile(systemId, entry, new Callable<Entry>() {
+                            @Override
+                            public Entry call() throws IOException, TransformerConfigurationException {
+                                return newEntry(systemId, entry.url);
+                            }
+                        });
+                    } catch (Exception ex) {
+                        entry.refreshFailed = started;
+                        throw ex;
+                    }
+                } else {
+                    cache.remove(systemId, entry);
+                }
+            } catch (Exception ex) {
+                reportRefreshFailure(systemId, ex);
+            }
+        }
+    }
+
+    private Templates getTemplates(Source source)
+    throws TransformerConfigurationException, IOException {
+        return getEntry(source).templates;
+    }
+
+    private Entry getEntry(final Source source)
+    throws TransformerConfigurationException, IOException {
+        String systemId = source.getSystemId();
+
+        // don't bother with lastModified since we don't know what it is
+        Entry entry = cache.get(systemId);
+        if (null != entry) {
+            statistics.hitCount.incrementAndGet();
+            return entry;
+        }
+        statistics.missCount.incrementAndGet();
+        return compile(systemId, null, new Callable<Entry>() {
+            @Override
+            public Entry call() throws TransformerConfigurationException {
+                return new Entry(tFactory.newTemplates(source));
+            }
+        });
+    }
+
+    private Templates getTemplates(URI uri)
+    throws TransformerConfigurationException, IOException {
+        return getEntry(uri).templates;
+    }
+
+    /**
+     *  @exception FileNotFoundException
+     *  @exception IOException
+     *  @exception TransformerConfigurationException
+     */
+    private Entry getEntry(URI uri)
+    throws TransformerConfigurationException, IOException {
+        String systemId = uri.toString();
+
+        // avoid resolving the URI unless a check for modifications is due
+        Entry oldEntry = cache.get(systemId);
+        if (null != oldEntry && ! isCheckDue(oldEntry)) {
+            statistics.hitCount.incrementAndGet();
+            return oldEntry;
+        }
+
+        URL url = null;
+        // try resolver first
+        if (null != resolver) {
+            url = resolver.toURL(uri);
+        }
+        if(url != null) {
+            return getEntry(systemId, url, oldEntry);
+        } else if (null == resolver || resolver.isDefaultLookupEnabled()) {
+            // try default resolver
+            url = new URL(uri.toString());
+            return getEntry(systemId, url, oldEntry);
+        } else {
+            // external lookups disabled and not found
+            throw new FileNotFoundException(uri.toString());
+        }
+    }
+
+    private Templates getTemplates(URL url)
+    throws TransformerConfigurationException, IOException {
+        return getEntry(url).templates;
+    }
+
+    /**
+     *  @exception FileNotFoundException
+     *  @exception IOException
+     *  @exception TransformerConfigurationException
+     */
+    private Entry getEntry(URL url)
+    throws TransformerConfigurationException, IOException {
+        try {
+            return getEntry(new URI(url.toExternalForm()));
+        } catch (URISyntaxException e) {
+            // this should not happen
+            throw new Error(e);
+        }
+    }
+
+    /***************/
+    public Transformer getAssociatedTransformer(Document doc) {
+        /*
+        ArrayList stylesheets = new ArrayList();
+        // loop through all PIs.  Return latest match.
+        try {
             for (Node child = doc.getFirstChild();
                  child != null;
                  child = child.getNextSibling()) {
@@ -578,60 +1276,894 @@ public class TemplatesCacheImpl implements TemplatesCache {
 
     /***************/
 
+    /**
+     *  Compiles a stylesheet and caches the result.  Only one thread compiles
+     *  a given systemId at a time; other threads requesting the same systemId
+     *  wait for and share the result.
+     *
+     *  @param systemId The systemId (cache key) of the stylesheet.
+     *  @param oldEntry The stale entry being replaced, or null.
+     *  @param compiler Creates the new entry.
+     */
+    private Entry compile(final String systemId, final Entry oldEntry, final Callable<Entry> compiler)
+    throws IOException, TransformerConfigurationException {
+        if (! cache.isCacheable(systemId)) {
+            try {
+                return timedCall(systemId, compiler);
+            } catch (Exception e) {
+                throw rethrow(e);
+            }
+        }
+        FutureTask<Entry> task = newCompileTask(systemId, oldEntry, compiler);
+        FutureTask<Entry> inFlight = cache.compiling.putIfAbsent(systemId, task);
+        if (null == inFlight) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                cache.compiling.remove(systemId, task);
+            }
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return inFlight.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw rethrow(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private FutureTask<Entry> newCompileTask(final String systemId, final Entry oldEntry,
+            final Callable<Entry> compiler) {
+        return new FutureTask<Entry>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                // another thread may have finished compiling while we checked
+                Entry current = cache.get(systemId);
+                if (null != current && current != oldEntry) {
+                    return current;
+                }
+                Entry entry = timedCall(systemId, compiler);
+                cache.put(systemId, entry);
+                return entry;
+            }
+        });
+    }
+
+    /**
+     *  Recompiles a stylesheet using the <code>Executor</code>, unless the
+     *  stylesheet is already being compiled.  If compilation fails, the old
+     *  entry is kept and is not recompiled again until the stylesheet is
+     *  modified again.
+     *
+     *  @param systemId The systemId (cache key) of the stylesheet.
+     *  @param oldEntry The stale entry being replaced.
+     *  @param compiler Creates the new entry.
+     */
+    private void compileAsync(final String systemId, final Entry oldEntry, final Callable<Entry> compiler) {
+        if (! cache.isCacheable(systemId) || cache.compiling.containsKey(systemId)) {
+            return;
+        }
+        final long started = System.currentTimeMillis();
+        final FutureTask<Entry> task = newCompileTask(systemId, oldEntry, compiler);
+        if (null != cache.compiling.putIfAbsent(systemId, task)) {
+            return;
+        }
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    cache.compiling.remove(systemId, task);
+                }
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    oldEntry.refreshFailed = started;
+                    reportRefreshFailure(systemId, e.getCause());
+                } catch (InterruptedException e) {
+                    // not possible, task has completed
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            getExecutor().execute(runnable);
+        } catch (RejectedExecutionException e) {
+            cache.compiling.remove(systemId, task);
+            reportRefreshFailure(systemId, e);
+        }
+    }
+
+    /**
+     *  Reports a failure to recompile a stylesheet that was not reported to
+     *  a requesting thread.
+     */
+    private void reportRefreshFailure(String systemId, Throwable t) {
+        String msg = "Unable to recompile stylesheet '" + systemId + "'; continuing to use previous version";
+        ErrorListener listener = errorListener;
+        if (null != listener) {
+            TransformerException te;
+            if (t instanceof TransformerException) {
+                te = new TransformerException(msg + ": " + t.getMessage(), ((TransformerException) t).getLocator(), t);
+            } else {
+                te = new TransformerException(msg + ": " + t.getMessage(), t);
+            }
+            try {
+                listener.error(te);
+                return;
+            } catch (TransformerException e) {
+                // fall through and log
+            }
+        }
+        log.warn(msg, t);
+    }
+
+    /**
+     *  Calls the compiler, recording the compile time for the systemId.
+     */
+    private Entry timedCall(String systemId, Callable<Entry> compiler) throws Exception {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Entry entry = compiler.call();
+            failed = false;
+            return entry;
+        } finally {
+            statistics.compiled(systemId, System.nanoTime() - start, failed);
+        }
+    }
+
+    private static TransformerConfigurationException rethrow(Throwable t)
+    throws IOException, TransformerConfigurationException {
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof TransformerConfigurationException) {
+            throw (TransformerConfigurationException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else {
+            throw new TransformerConfigurationException(t);
+        }
+    }
+
+    /**
+     *  Compiles the stylesheet at the given URL.
+     */
+    private Entry newEntry(String systemId, URL url)
+    throws IOException, TransformerConfigurationException {
+        long lastModified;
+        byte[] source;
+        InputStream is = null;
+        try {
+            if(url.getProtocol().equals("file")) {
+                File resourceFile = toFile(url);
+                lastModified = resourceFile.lastModified();
+                is = new FileInputStream(resourceFile);
+            } else {
+                URLConnection conn = url.openConnection();
+                is = conn.getInputStream();
+                lastModified = conn.getLastModified();
+            }
+            source = TemplatesStore.readFully(is);
+        } finally {
+            try { if(is != null) is.close(); } catch (Exception e) { /* no op */ }
+        }
+
+        ContentIndex index = contentIndex;
+        if (null != index) {
+            // keys without dependencies are only registered for stylesheets
+            // compiled without any includes or imports, so a stylesheet
+            // matching one has no includes or imports either
+            String key = index.key(source, systemId, NO_DEPENDENCIES);
+            Templates templates = null == key ? null : index.get(key);
+            if (null != templates) {
+                statistics.sharedCount.incrementAndGet();
+                return new Entry(templates, url, lastModified, source.length, NO_DEPENDENCIES);
+            }
+        }
+
+        TemplatesStore store = templatesStore;
+        if (null != store) {
+            TemplatesStore.Loaded loaded = store.load(systemId, source);
+            if (null != loaded) {
+                Dependency[] dependencies = new Dependency[loaded.dependencies.size()];
+                for (int i = 0; i < dependencies.length; i++) {
+                    URL depURL = loaded.dependencies.get(i);
+                    dependencies[i] = new Dependency(depURL, null, LastModifiedCache.lastModified(depURL));
+                }
+                Templates templates = new ResolvingTemplates(loaded.templates);
+                return new Entry(share(index, templates, source, systemId, dependencies),
+                        url, lastModified, source.length, dependencies);
+            }
+        }
+
+        Templates templates;
+        Recording recording = new Recording();
+        List<Dependency> dependencies = recording.dependencies;
+        Recording outerRecording = dependencyRecorder.begin(recording);
+        XMLReaderPool pool = readerPool;
+        XMLReader reader = null;
+        try {
+            reader = pool.borrowReader();
+            templates = tFactory.newTemplates(newSource(reader, new ByteArrayInputStream(source), systemId));
+        } catch (SAXException e) {
+            throw new TransformerConfigurationException(e);
+        } finally {
+            dependencyRecorder.end(outerRecording);
+            pool.releaseReader(reader);
+        }
+
+        if (null != store) {
+            List<URL> depURLs = new ArrayList<URL>(dependencies.size());
+            for (Dependency dependency : dependencies) {
+                depURLs.add(dependency.url);
+            }
+            store.store(systemId, source, templates, depURLs);
+        }
+        Dependency[] dependencyArray = dependencies.toArray(new Dependency[dependencies.size()]);
+        // if a dependency could not be recorded, the key would not identify the stylesheet
+        return new Entry(share(recording.complete ? index : null, templates, source, systemId, dependencyArray),
+                url, lastModified, source.length, dependencyArray);
+    }
+
+    /**
+     *  Returns a previously compiled <code>Templates</code> having the same
+     *  content hash as the given one, or registers and returns the given
+     *  <code>Templates</code> if there is none.
+     *
+     *  @param index The content index, or null if the Templates should not be
+     *         shared.
+     */
+    private Templates share(ContentIndex index, Templates templates, byte[] source, String systemId,
+            Dependency[] dependencies) {
+        if (null == index) {
+            return templates;
+        }
+        String key;
+        try {
+            key = index.key(source, systemId, dependencies);
+        } catch (IOException e) {
+            // a dependency could not be read; don't share
+            return templates;
+        }
+        if (null == key) {
+            return templates;
+        }
+        Templates shared = index.putIfAbsent(key, templates);
+        if (shared != templates) {
+            statistics.sharedCount.incrementAndGet();
+        }
+        return shared;
+    }
+
+    private static File toFile(URL url) throws IOException {
+        return new File(URLDecoder.decode(url.getFile(), "UTF-8"));
+    }
+
     // MEMBER CLASSES
-    private final class Entry {
-        private long lastModified;
-        private Templates templates;
+    private static final class Entry {
+        private final long lastModified;
+        private final long weight;
+        private final Templates templates;
+        private final URL url;
+        private final Dependency[] dependencies;
+        private volatile long lastAccess;
+        private volatile long lastChecked;
+        // time of the last failed attempt to recompile, or zero
+        private volatile long refreshFailed;
+        private volatile TransformerPool transformerPool;
 
         Entry(Templates templates) {
-            this(templates, 0);
+            this(templates, null, 0, 0, NO_DEPENDENCIES);
         }
-        Entry(Templates templates, long lastModified) {
+        Entry(Templates templates, URL url, long lastModified, long weight, Dependency[] dependencies) {
             this.lastModified = lastModified;
+            this.weight = weight;
             this.templates = templates;
+            this.url = url;
+            this.dependencies = dependencies;
+            this.lastChecked = System.currentTimeMillis();
+        }
+    }
+
+    private TransformerPool getTransformerPool(Entry entry) {
+        TransformerPool pool = entry.transformerPool;
+        if (null == pool) {
+            synchronized (entry) {
+                pool = entry.transformerPool;
+                if (null == pool) {
+                    pool = new TransformerPool(entry.templates, this, transformerPoolSize);
+                    entry.transformerPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     *  A stylesheet included or imported by a cached stylesheet.
+     */
+    private static final class Dependency {
+        private final URL url;
+        // the URI the stylesheet was compiled with, or null if unknown
+        private final String systemId;
+        private final long lastModified;
+
+        Dependency(URL url, String systemId, long lastModified) {
+            this.url = url;
+            this.systemId = systemId;
+            this.lastModified = lastModified;
         }
     }
 
+    /**
+     *  The dependencies recorded while compiling a stylesheet.
+     *  <code>complete</code> is false if an include or import was resolved
+     *  but could not be recorded.
+     */
+    private static final class Recording {
+        private final List<Dependency> dependencies = new ArrayList<Dependency>();
+        private boolean complete = true;
+    }
+
+    /**
+     *  URIResolver installed on the TransformerFactory.  Delegates to the
+     *  UnifiedResolver and, while a stylesheet is being compiled on the
+     *  current thread, records the included and imported stylesheets.
+     */
+    private final class DependencyRecorder implements URIResolver {
+        private final ThreadLocal<Recording> recordings = new ThreadLocal<Recording>();
+
+        Recording begin(Recording recording) {
+            Recording outer = recordings.get();
+            recordings.set(recording);
+            return outer;
+        }
+
+        void end(Recording outer) {
+            if (null == outer) {
+                recordings.remove();
+            } else {
+                recordings.set(outer);
+            }
+        }
+
+        @Override
+        public Source resolve(String href, String base) throws TransformerException {
+            Recording recording = recordings.get();
+            if (null != recording) {
+                record(recording, href, base);
+            }
+            UnifiedResolver r = resolver;
+            return null == r ? null : r.resolve(href, base);
+        }
+
+        private void record(Recording recording, String href, String base) {
+            try {
+                URI uri = null == base ? new URI(href) : new URI(base).resolve(href);
+                URL url = null;
+                UnifiedResolver r = resolver;
+                if (null != r) {
+                    url = r.toURL(uri);
+                }
+                if (null == url && uri.isAbsolute()) {
+                    url = new URL(uri.toString());
+                }
+                if (null != url) {
+                    recording.dependencies.add(
+                            new Dependency(url, uri.toString(), LastModifiedCache.lastModified(url)));
+                } else {
+                    recording.complete = false;
+                }
+            } catch (Exception e) {
+                // not able to track this dependency
+                recording.complete = false;
+                if (log.isDebugEnabled()) {
+                    log.debug("Unable to track dependency '" + href + "' of '" + base + "'", e);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Templates loaded from the persistent store.  The stored Templates do
+     *  not retain the factory's URIResolver, so it is reapplied to each new
+     *  Transformer, including those created for TransformerHandlers and
+     *  XMLFilters.
+     */
+    private final class ResolvingTemplates implements Templates {
+        private final Templates templates;
+
+        ResolvingTemplates(Templates templates) {
+            this.templates = templates;
+        }
+
+        @Override
+        public Transformer newTransformer() throws TransformerConfigurationException {
+            Transformer t = templates.newTransformer();
+            t.setURIResolver(dependencyRecorder);
+            return t;
+        }
+
+        @Override
+        public Properties getOutputProperties() {
+            return templates.getOutputProperties();
+        }
+    }
+
+    /**
+     *  Last modified times of stylesheets, shared between cache entries so
+     *  that a stylesheet included by several others is checked only once
+     *  within a given period.
+     */
+    private static final class LastModifiedCache {
+        private final ConcurrentHashMap<String, long[]> map = new ConcurrentHashMap<String, long[]>();
+
+        /**
+         *  Returns the last modified time of the resource at the given URL,
+         *  using a previously obtained value if it is less than
+         *  <code>maxAge</code> milliseconds old.
+         */
+        long lastModified(URL url, long maxAge) throws IOException {
+            if (maxAge <= 0) {
+                return lastModified(url);
+            }
+            String key = url.toExternalForm();
+            long now = System.currentTimeMillis();
+            // { lastModified, checked }
+            long[] value = map.get(key);
+            if (null == value || now - value[1] >= maxAge) {
+                value = new long[] { lastModified(url), now };
+                map.put(key, value);
+            }
+            return value[0];
+        }
+
+        void clear() {
+            map.clear();
+        }
+
+        /**
+         *  Returns the last modified time of the resource at the given URL
+         *  without reading the resource.
+         */
+        static long lastModified(URL url) throws IOException {
+            if(url.getProtocol().equals("file")) {
+                return toFile(url).lastModified();
+            }
+            URLConnection conn = url.openConnection();
+            try {
+                return conn.getLastModified();
+            } finally {
+                if (conn instanceof HttpURLConnection) {
+                    ((HttpURLConnection) conn).disconnect();
+                } else if (! (conn instanceof JarURLConnection)) {
+                    // the connection may have opened a stream to determine lastModified
+                    try { conn.getInputStream().close(); } catch (Exception e) { /* no op */ }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Approximate LRU cache of entries, bounded by <code>maxCacheEntries</code>
+     *  and <code>maxCacheWeight</code>.  Lookups are lock free; eviction
+     *  removes the entries with the oldest access time and is serialized.
+     *  Each eviction sorts the entries once and evicts down to 90% of the
+     *  limits, so that eviction is not needed for every put.
+     */
     private final class Cache {
-        private HashMap<String, Entry> map = new HashMap<String, Entry>();
+        private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<String, Entry>();
+        private final ConcurrentHashMap<String, FutureTask<Entry>> compiling =
+                new ConcurrentHashMap<String, FutureTask<Entry>>();
+        private final AtomicLong weight = new AtomicLong();
+        private final AtomicLong evictionCount = new AtomicLong();
+        private final Object evictionLock = new Object();
         Cache() {
             // super();
         }
+        boolean isCacheable(String systemId) {
+            return cacheEnabled && systemId != null && ! "".equals(systemId);
+        }
         void put(String systemId, Entry entry) {
-            if (cacheEnabled && systemId != null && ! "".equals(systemId)) {
-                map.put(systemId, entry);
+            if (isCacheable(systemId)) {
+                entry.lastAccess = System.nanoTime();
+                Entry oldEntry = map.put(systemId, entry);
+                weight.addAndGet(null == oldEntry ? entry.weight : entry.weight - oldEntry.weight);
+                evict();
             }
         }
         Entry get(String systemId) {
-            if (cacheEnabled && systemId != null && ! "".equals(systemId)) {
-                return map.get(systemId);
+            if (isCacheable(systemId)) {
+                Entry entry = map.get(systemId);
+                if (null != entry) {
+                    entry.lastAccess = System.nanoTime();
+                }
+                return entry;
             } else {
                 return null;
             }
         }
+        void remove(String systemId, Entry entry) {
+            if (map.remove(systemId, entry)) {
+                weight.addAndGet(-entry.weight);
+            }
+        }
+        void evict() {
+            if (! isOverLimit()) {
+                return;
+            }
+            synchronized (evictionLock) {
+                if (! isOverLimit()) {
+                    return;
+                }
+                int max = maxCacheEntries;
+                long maxWeight = maxCacheWeight;
+                int lowEntries = max > 0 ? max - max / 10 : Integer.MAX_VALUE;
+                long lowWeight = maxWeight > 0 ? maxWeight - maxWeight / 10 : Long.MAX_VALUE;
+                List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(map.entrySet());
+                final long[] accessed = new long[entries.size()];
+                Integer[] order = new Integer[entries.size()];
+                for (int i = 0; i < order.length; i++) {
+                    // snapshot, since lastAccess changes during the sort
+                    accessed[i] = entries.get(i).getValue().lastAccess;
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        long d = accessed[a] - accessed[b];
+                        return d < 0 ? -1 : d == 0 ? 0 : 1;
+                    }
+                });
+                for (int i = 0; i < order.length && (map.size() > lowEntries || weight.get() > lowWeight); i++) {
+                    Map.Entry<String, Entry> e = entries.get(order[i]);
+                    if (map.remove(e.getKey(), e.getValue())) {
+                        weight.addAndGet(-e.getValue().weight);
+                        evictionCount.incrementAndGet();
+                    }
+                }
+            }
+        }
+        private boolean isOverLimit() {
+            int max = maxCacheEntries;
+            long maxWeight = maxCacheWeight;
+            return (max > 0 && map.size() > max)
+                    || (maxWeight > 0 && weight.get() > maxWeight);
+        }
         void clear() {
-            map.clear();
+            synchronized (evictionLock) {
+                for (Map.Entry<String, Entry> e : map.entrySet()) {
+                    if (map.remove(e.getKey(), e.getValue())) {
+                        weight.addAndGet(-e.getValue().weight);
+                    }
+                }
+            }
         }
         int size() {
             return map.size();
         }
+        long weight() {
+            return weight.get();
+        }
+    }
+
+    /**
+     *  Counters backing <code>getStatistics()</code>.  Compile statistics are
+     *  updated under a per-systemId lock; compilation is rare enough that
+     *  the lock is effectively uncontended.  At most
+     *  <code>MAX_COMPILE_STATS</code> systemIds are tracked.
+     */
+    private final class Statistics {
+        private final AtomicLong hitCount = new AtomicLong();
+        private final AtomicLong missCount = new AtomicLong();
+        private final AtomicLong staleCheckCount = new AtomicLong();
+        private final AtomicLong staleCount = new AtomicLong();
+        private final AtomicLong sharedCount = new AtomicLong();
+        private final AtomicLong transformerCount = new AtomicLong();
+        private final AtomicLong transformerTime = new AtomicLong();
+        private final AtomicLong compileCount = new AtomicLong();
+        private final AtomicLong compileFailureCount = new AtomicLong();
+        private final AtomicLong compileTime = new AtomicLong();
+        private final ConcurrentHashMap<String, CompileRecord> compiles =
+                new ConcurrentHashMap<String, CompileRecord>();
+        private final Object trimLock = new Object();
+
+        void transformerCreated(long nanos) {
+            transformerCount.incrementAndGet();
+            transformerTime.addAndGet(nanos);
+        }
+
+        void compiled(String systemId, long nanos, boolean failed) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            compileCount.incrementAndGet();
+            if (failed) {
+                compileFailureCount.incrementAndGet();
+            }
+            compileTime.addAndGet(millis);
+            String key = null == systemId ? "" : systemId;
+            CompileRecord record = compiles.get(key);
+            if (null == record) {
+                CompileRecord newRecord = new CompileRecord();
+                record = compiles.putIfAbsent(key, newRecord);
+                if (null == record) {
+                    record = newRecord;
+                    if (compiles.size() > MAX_COMPILE_STATS) {
+                        trim();
+                    }
+                }
+            }
+            record.add(millis, failed);
+        }
+
+        /**
+         *  Discards the records of the least recently compiled stylesheets,
+         *  down to 90% of <code>MAX_COMPILE_STATS</code>.
+         */
+        private void trim() {
+            synchronized (trimLock) {
+                int excess = compiles.size() - MAX_COMPILE_STATS;
+                if (excess <= 0) {
+                    return;
+                }
+                int count = excess + MAX_COMPILE_STATS / 10;
+                List<Map.Entry<String, CompileRecord>> entries =
+                        new ArrayList<Map.Entry<String, CompileRecord>>(compiles.entrySet());
+                final long[] compiled = new long[entries.size()];
+                Integer[] order = new Integer[entries.size()];
+                for (int i = 0; i < order.length; i++) {
+                    // snapshot, since lastCompile changes during the sort
+                    compiled[i] = entries.get(i).getValue().lastCompile;
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        long d = compiled[a] - compiled[b];
+                        return d < 0 ? -1 : d == 0 ? 0 : 1;
+                    }
+                });
+                for (int i = 0; i < count && i < order.length; i++) {
+                    Map.Entry<String, CompileRecord> e = entries.get(order[i]);
+                    compiles.remove(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        TemplatesCacheStats snapshot() {
+            Map<String, TemplatesCacheStats.CompileStats> compileStats =
+                    new TreeMap<String, TemplatesCacheStats.CompileStats>();
+            for (Map.Entry<String, CompileRecord> e : compiles.entrySet()) {
+                compileStats.put(e.getKey(), e.getValue().snapshot());
+            }
+            return new TemplatesCacheStats(hitCount.get(), missCount.get(), staleCheckCount.get(),
+                    staleCount.get(), sharedCount.get(), cache.evictionCount.get(), transformerCount.get(),
+                    TimeUnit.NANOSECONDS.toMillis(transformerTime.get()), cache.size(), cache.weight(),
+                    compileCount.get(), compileFailureCount.get(), compileTime.get(), compileStats);
+        }
+
+        void reset() {
+            hitCount.set(0);
+            missCount.set(0);
+            staleCheckCount.set(0);
+            staleCount.set(0);
+            sharedCount.set(0);
+            transformerCount.set(0);
+            transformerTime.set(0);
+            cache.evictionCount.set(0);
+            compileCount.set(0);
+            compileFailureCount.set(0);
+            compileTime.set(0);
+            compiles.clear();
+        }
+    }
+
+    private static final class CompileRecord {
+        private long count;
+        private long failureCount;
+        private long totalTime;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime;
+        private final long[] histogram = new long[TemplatesCacheStats.CompileStats.BUCKETS];
+        // System.nanoTime() of the latest compilation
+        private volatile long lastCompile = System.nanoTime();
+
+        synchronized void add(long millis, boolean failed) {
+            lastCompile = System.nanoTime();
+            count++;
+            if (failed) {
+                failureCount++;
+            }
+            totalTime += millis;
+            minTime = Math.min(minTime, millis);
+            maxTime = Math.max(maxTime, millis);
+            histogram[TemplatesCacheStats.CompileStats.bucket(millis)]++;
+        }
+
+        synchronized TemplatesCacheStats.CompileStats snapshot() {
+            return new TemplatesCacheStats.CompileStats(count, failureCount, totalTime,
+                    count == 0 ? 0 : minTime, maxTime, histogram.clone());
+        }
     }
 
-    private Source newSource(InputStream is, String systemId) throws TransformerConfigurationException {
+    /**
+     *  Index of compiled <code>Templates</code> by a hash of the content of
+     *  the stylesheet and of the stylesheets it includes or imports.
+     *  <code>Templates</code> are weakly referenced so that the index does
+     *  not retain <code>Templates</code> after all cache entries using them
+     *  have been evicted.
+     *
+     *  <p>
+     *  A compiled stylesheet resolves relative URIs in functions such as
+     *  <code>document()</code> against the URI it was compiled with, so the
+     *  key of a stylesheet whose content may do so also includes the
+     *  directory of that URI.  Such stylesheets are then only shared when
+     *  served from the same directory.
+     *  </p>
+     */
+    private static final class ContentIndex {
+        private static final int MAX_DIGESTS = 10000;
+        // functions that resolve URIs at transformation time or expose the base URI
+        private static final Pattern BASE_URI_FUNCTION = Pattern.compile(
+                "\\b(?:document|doc|doc-available|unparsed-text(?:-lines|-available)?|collection"
+                + "|base-uri|static-base-uri|resolve-uri)\\s*\\(");
+
+        private final ConcurrentHashMap<String, Ref> map = new ConcurrentHashMap<String, Ref>();
+        private final ReferenceQueue<Templates> queue = new ReferenceQueue<Templates>();
+        // digests of dependencies by URL, reused while lastModified is unchanged
+        private final ConcurrentHashMap<String, Digest> digests = new ConcurrentHashMap<String, Digest>();
+
+        /**
+         * @return The key, or null if the stylesheet must not be shared.
+         */
+        String key(byte[] source, String systemId, Dependency[] dependencies) throws IOException {
+            StringBuilder sb = new StringBuilder(TemplatesStore.hash(source));
+            if (usesBaseURI(source)) {
+                sb.append('@').append(directory(systemId));
+            }
+            for (Dependency dependency : dependencies) {
+                Digest digest = digest(dependency);
+                sb.append(' ').append(digest.hash);
+                if (digest.usesBaseURI) {
+                    if (null == dependency.systemId) {
+                        // the URI the dependency was compiled with is unknown
+                        return null;
+                    }
+                    sb.append('@').append(directory(dependency.systemId));
+                }
+            }
+            return sb.toString();
+        }
+
+        private Digest digest(Dependency dependency) throws IOException {
+            String key = dependency.url.toExternalForm();
+            Digest digest = digests.get(key);
+            // an unknown lastModified (zero) cannot show that the content is unchanged
+            if (null == digest || dependency.lastModified == 0 || digest.lastModified != dependency.lastModified) {
+                InputStream in = dependency.url.openStream();
+                byte[] bytes;
+                try {
+                    bytes = TemplatesStore.readFully(in);
+                } finally {
+                    try { in.close(); } catch (Exception e) { /* no op */ }
+                }
+                digest = new Digest(dependency.lastModified, TemplatesStore.hash(bytes), usesBaseURI(bytes));
+                if (digests.size() >= MAX_DIGESTS) {
+                    digests.clear();
+                }
+                digests.put(key, digest);
+            }
+            return digest;
+        }
+
+        /**
+         * @return True if the stylesheet may resolve relative URIs at
+         *         transformation time.  Content that cannot be scanned as
+         *         an ASCII compatible encoding is assumed to.
+         */
+        static boolean usesBaseURI(byte[] bytes) {
+            for (byte b : bytes) {
+                if (b == 0) {
+                    // UTF-16 or similar
+                    return true;
+                }
+            }
+            try {
+                return BASE_URI_FUNCTION.matcher(new String(bytes, "ISO-8859-1")).find();
+            } catch (UnsupportedEncodingException e) {
+                // ISO-8859-1 is required to be supported
+                throw new Error(e);
+            }
+        }
+
+        private static String directory(String systemId) {
+            return null == systemId ? "" : systemId.substring(0, systemId.lastIndexOf('/') + 1);
+        }
+
+        Templates get(String key) {
+            Ref ref = map.get(key);
+            return null == ref ? null : ref.get();
+        }
+
+        Templates putIfAbsent(String key, Templates templates) {
+            purge();
+            Ref ref = new Ref(key, templates, queue);
+            while (true) {
+                Ref existing = map.putIfAbsent(key, ref);
+                if (null == existing) {
+                    return templates;
+                }
+                Templates shared = existing.get();
+                if (null != shared) {
+                    return shared;
+                }
+                map.remove(key, existing);
+            }
+        }
+
+        void clear() {
+            map.clear();
+            digests.clear();
+        }
+
+        private void purge() {
+            Reference<? extends Templates> ref;
+            while (null != (ref = queue.poll())) {
+                map.remove(((Ref) ref).key, ref);
+            }
+        }
+
+        private static final class Digest {
+            private final long lastModified;
+            private final String hash;
+            private final boolean usesBaseURI;
+            Digest(long lastModified, String hash, boolean usesBaseURI) {
+                this.lastModified = lastModified;
+                this.hash = hash;
+                this.usesBaseURI = usesBaseURI;
+            }
+        }
+
+        private static final class Ref extends WeakReference<Templates> {
+            private final String key;
+            Ref(String key, Templates templates, ReferenceQueue<Templates> queue) {
+                super(templates, queue);
+                this.key = key;
+            }
+        }
+    }
+
+    static final class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private Source newSource(XMLReader reader, InputStream is, String systemId) {
         // It would be much easier to do:
         //      return new StreamSource(is, systemId);
         // but, we would like to specify the ErrorHandler...
 
-        SAXParser sp;
-        XMLReader reader;
-        try {
-            sp = saxParserFactory.newSAXParser();
-            reader = sp.getXMLReader();
-        } catch (ParserConfigurationException e) {
-            throw new TransformerConfigurationException(e);
-        } catch (SAXException e) {
-            throw new TransformerConfigurationException(e);
-        }
         if (null != errorHandler) {
             reader.setErrorHandler(errorHandler);
         }
@@ -0,0 +1,93 @@
+package org.anodyneos.commons.xml.xsl;
+
+import java.util.Map;
+
+/**
+ *  A standard MBean exposing the statistics and limits of a
+ *  <code>TemplatesCache</code>.  Register it with an
+ *  <code>MBeanServer</code>:
+ *
+ *  <pre>
+ *      ManagementFactory.getPlatformMBeanServer().registerMBean(
+ *              new TemplatesCacheMonitor(templatesCache),
+ *              new ObjectName("org.anodyneos.commons:type=TemplatesCache,name=main"));
+ *  </pre>
+ *
+ *  Each attribute read takes a new statistics snapshot; attributes read
+ *  together are therefore not necessarily consistent with each other.
+ */
+public class TemplatesCacheMonitor implements TemplatesCacheMonitorMBean {
+
+    private final TemplatesCache templatesCache;
+
+    public TemplatesCacheMonitor(TemplatesCache templatesCache) {
+        this.templatesCache = templatesCache;
+    }
+
+    public TemplatesCache getTemplatesCache() {
+        return templatesCache;
+    }
+
+    private TemplatesCacheStats stats() {
+        return templatesCache.getStatistics();
+    }
+
+    @Override
+    public int getCacheSize() { return templatesCache.getCacheSize(); }
+    @Override
+    public long getCacheWeight() { return templatesCache.getCacheWeight(); }
+    @Override
+    public int getMaxCacheEntries() { return templatesCache.getMaxCacheEntries(); }
+    @Override
+    public void setMaxCacheEntries(int maxCacheEntries) { templatesCache.setMaxCacheEntries(maxCacheEntries); }
+    @Override
+    public long getMaxCacheWeight() { return templatesCache.getMaxCacheWeight(); }
+    @Override
+    public void setMaxCacheWeight(long maxCacheWeight) { templatesCache.setMaxCacheWeight(maxCacheWeight); }
+    @Override
+    public long getCheckInterval() { return templatesCache.getCheckInterval(); }
+    @Override
+    public void setCheckInterval(long checkInterval) { templatesCache.setCheckInterval(checkInterval); }
+
+    @Override
+    public long getHitCount() { return stats().getHitCount(); }
+    @Override
+    public long getMissCount() { return stats().getMissCount(); }
+    @Override
+    public double getHitRate() { return stats().getHitRate(); }
+    @Override
+    public long getStaleCheckCount() { return stats().getStaleCheckCount(); }
+    @Override
+    public long getStaleCount() { return stats().getStaleCount(); }
+    @Override
+    public long getSharedCount() { return stats().getSharedCount(); }
+    @Override
+    public long getEvictionCount() { return templatesCache.getEvictionCount(); }
+    @Override
+    public long getCompileCount() { return stats().getCompileCount(); }
+    @Override
+    public long getCompileFailureCount() { return stats().getCompileFailureCount(); }
+    @Override
+    public long getCompileTime() { return stats().getCompileTime(); }
+    @Override
+    public long getTransformerCount() { return stats().getTransformerCount(); }
+    @Override
+    public long getTransformerTime() { return stats().getTransformerTime(); }
+
+    @Override
+    public String[] getCompileStats() {
+        Map<String, TemplatesCacheStats.CompileStats> compileStats = stats().getCompileStats();
+        String[] lines = new String[compileStats.size()];
+        int i = 0;
+        for (Map.Entry<String, TemplatesCacheStats.CompileStats> e : compileStats.entrySet()) {
+            lines[i++] = e.getKey() + ": " + e.getValue();
+        }
+        return lines;
+    }
+
+    @Override
+    public void clearCache() { templatesCache.clearCache(); }
+    @Override
+    public void resetStatistics() { templatesCache.resetStatistics(); }
+
+}
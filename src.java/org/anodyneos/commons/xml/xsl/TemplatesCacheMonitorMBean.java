@@ -0,0 +1,39 @@
+package org.anodyneos.commons.xml.xsl;
+
+/**
+ *  JMX management interface for <code>TemplatesCacheMonitor</code>.  Times
+ *  are in milliseconds.
+ */
+public interface TemplatesCacheMonitorMBean {
+
+    int getCacheSize();
+    long getCacheWeight();
+    int getMaxCacheEntries();
+    void setMaxCacheEntries(int maxCacheEntries);
+    long getMaxCacheWeight();
+    void setMaxCacheWeight(long maxCacheWeight);
+    long getCheckInterval();
+    void setCheckInterval(long checkInterval);
+
+    long getHitCount();
+    long getMissCount();
+    double getHitRate();
+    long getStaleCheckCount();
+    long getStaleCount();
+    long getSharedCount();
+    long getEvictionCount();
+    long getCompileCount();
+    long getCompileFailureCount();
+    long getCompileTime();
+    long getTransformerCount();
+    long getTransformerTime();
+
+    /**
+     * @return Compile statistics for each systemId, one per line.
+     */
+    String[] getCompileStats();
+
+    void clearCache();
+    void resetStatistics();
+
+}
@@ -0,0 +1,250 @@
+package org.anodyneos.commons.xml.xsl;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ *  A snapshot of <code>TemplatesCache</code> statistics, obtained from
+ *  <code>TemplatesCache.getStatistics()</code>.  Counts are cumulative since
+ *  the cache was created or <code>resetStatistics()</code> was last called.
+ */
+public class TemplatesCacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long staleCheckCount;
+    private final long staleCount;
+    private final long sharedCount;
+    private final long evictionCount;
+    private final long transformerCount;
+    private final long transformerTime;
+    private final int cacheSize;
+    private final long cacheWeight;
+    private final long compileCount;
+    private final long compileFailureCount;
+    private final long compileTime;
+    private final Map<String, CompileStats> compileStats;
+
+    TemplatesCacheStats(long hitCount, long missCount, long staleCheckCount, long staleCount,
+            long sharedCount, long evictionCount, long transformerCount, long transformerTime, int cacheSize,
+            long cacheWeight, long compileCount, long compileFailureCount, long compileTime,
+            Map<String, CompileStats> compileStats) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.staleCheckCount = staleCheckCount;
+        this.staleCount = staleCount;
+        this.sharedCount = sharedCount;
+        this.evictionCount = evictionCount;
+        this.transformerCount = transformerCount;
+        this.transformerTime = transformerTime;
+        this.cacheSize = cacheSize;
+        this.cacheWeight = cacheWeight;
+        this.compileCount = compileCount;
+        this.compileFailureCount = compileFailureCount;
+        this.compileTime = compileTime;
+        this.compileStats = Collections.unmodifiableMap(compileStats);
+    }
+
+    /**
+     * @return The number of requests served by a cached Templates, including
+     *         stale Templates served during asynchronous recompilation.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The number of requests that waited for a stylesheet to be
+     *         compiled.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return The fraction of requests that were hits, or zero if there have
+     *         been no requests.
+     */
+    public double getHitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 0 : (double) hitCount / requests;
+    }
+
+    /**
+     * @return The number of times cached stylesheets were checked for
+     *         modifications.
+     */
+    public long getStaleCheckCount() {
+        return staleCheckCount;
+    }
+
+    /**
+     * @return The number of checks that found a modified stylesheet.
+     */
+    public long getStaleCount() {
+        return staleCount;
+    }
+
+    /**
+     * @return The number of times a cache entry was given an existing
+     *         Templates compiled from identical content, when deduplication
+     *         is enabled.
+     */
+    public long getSharedCount() {
+        return sharedCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return The number of Transformers created, including those created
+     *         for TransformerPools.
+     */
+    public long getTransformerCount() {
+        return transformerCount;
+    }
+
+    /**
+     * @return The total time in milliseconds spent creating Transformers.
+     */
+    public long getTransformerTime() {
+        return transformerTime;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public long getCacheWeight() {
+        return cacheWeight;
+    }
+
+    /**
+     * @return Compile statistics keyed by systemId.  Statistics are retained
+     *         for stylesheets that are no longer cached, up to
+     *         <code>TemplatesCacheImpl.MAX_COMPILE_STATS</code> most recently
+     *         compiled stylesheets.
+     */
+    public Map<String, CompileStats> getCompileStats() {
+        return compileStats;
+    }
+
+    /**
+     * @return The number of compilations of all stylesheets, including
+     *         those no longer in <code>getCompileStats()</code>.
+     */
+    public long getCompileCount() {
+        return compileCount;
+    }
+
+    /**
+     * @return The number of failed compilations of all stylesheets.
+     */
+    public long getCompileFailureCount() {
+        return compileFailureCount;
+    }
+
+    /**
+     * @return The total time in milliseconds spent compiling all stylesheets.
+     */
+    public long getCompileTime() {
+        return compileTime;
+    }
+
+    @Override
+    public String toString() {
+        return "TemplatesCacheStats[size=" + cacheSize + ", weight=" + cacheWeight
+                + ", hits=" + hitCount + ", misses=" + missCount
+                + ", staleChecks=" + staleCheckCount + ", stale=" + staleCount + ", shared=" + sharedCount
+                + ", evictions=" + evictionCount + ", compiles=" + getCompileCount()
+                + ", compileFailures=" + getCompileFailureCount() + ", compileTime=" + getCompileTime()
+                + "ms, transformers=" + transformerCount + ", transformerTime=" + transformerTime + "ms]";
+    }
+
+    /**
+     *  Compile times for a single stylesheet, including a histogram with
+     *  power of two millisecond buckets: bucket 0 counts compilations taking
+     *  less than 1ms, and bucket <i>i</i> counts compilations taking at least
+     *  2<sup><i>i</i>-1</sup>ms and less than 2<sup><i>i</i></sup>ms.  The
+     *  last bucket has no upper bound.
+     */
+    public static class CompileStats {
+
+        public static final int BUCKETS = 16;
+
+        private final long count;
+        private final long failureCount;
+        private final long totalTime;
+        private final long minTime;
+        private final long maxTime;
+        private final long[] histogram;
+
+        CompileStats(long count, long failureCount, long totalTime, long minTime, long maxTime,
+                long[] histogram) {
+            this.count = count;
+            this.failureCount = failureCount;
+            this.totalTime = totalTime;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            this.histogram = histogram;
+        }
+
+        static int bucket(long millis) {
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+        }
+
+        /**
+         * @return The number of compilations, including failures.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * @return The total compile time in milliseconds.
+         */
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        public long getMinTime() {
+            return minTime;
+        }
+
+        public long getMaxTime() {
+            return maxTime;
+        }
+
+        public long getMeanTime() {
+            return count == 0 ? 0 : totalTime / count;
+        }
+
+        /**
+         * @return A copy of the histogram; see the class description.
+         */
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        /**
+         * @return The exclusive upper bound in milliseconds of the given
+         *         bucket, or <code>Long.MAX_VALUE</code> for the last bucket.
+         */
+        public static long getBucketUpperBound(int bucket) {
+            return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", failures=" + failureCount + ", total=" + totalTime
+                    + "ms, min=" + minTime + "ms, mean=" + getMeanTime() + "ms, max=" + maxTime + "ms";
+        }
+    }
+
+}
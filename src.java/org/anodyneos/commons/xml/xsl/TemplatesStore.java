@@ -0,0 +1,268 @@
+package org.anodyneos.commons.xml.xsl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.transform.Templates;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ *  Persists compiled <code>Templates</code> to a directory so that they may
+ *  be reloaded, rather than recompiled, after a restart.  Only
+ *  <code>Templates</code> implementations that are
+ *  <code>Serializable</code> can be stored; this includes XSLTC, the JDK
+ *  default, for which the generated translet bytecode is stored.
+ *
+ *  <p>
+ *      Each stored <code>Templates</code> is keyed by the stylesheet's
+ *      systemId and is valid only while the SHA-1 hashes of the stylesheet
+ *      and of each stylesheet it includes or imports are unchanged, and only
+ *      for the same <code>TransformerFactory</code> implementation and Java
+ *      version.
+ *  </p>
+ *  <p>
+ *      Deserialization is limited to <code>Templates</code> implementations
+ *      and the few JDK classes they are serialized with, such as XSLTC's
+ *      translet bytecode arrays and output <code>Properties</code>.
+ *      WARNING: translet bytecode is still executed, so the directory must
+ *      not be writable by untrusted users.
+ *  </p>
+ *  <p>
+ *      A reloaded <code>Templates</code> does not retain the
+ *      <code>URIResolver</code> of the <code>TransformerFactory</code>, since
+ *      XSLTC only serializes a <code>Serializable</code> resolver; callers
+ *      must reapply it.
+ *  </p>
+ */
+final class TemplatesStore {
+
+    private static final Log log = LogFactory.getLog(TemplatesStore.class);
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".templates";
+
+    // classes other than Templates implementations that may be deserialized
+    private static final Set<String> ALLOWED_CLASSES = new HashSet<String>(Arrays.asList(
+            "[B", "[[B", "java.lang.String", "java.lang.Boolean", "java.lang.Integer", "java.lang.Number",
+            "java.util.Properties", "java.util.Hashtable"));
+
+    private final File directory;
+    private final String compatibilityKey;
+
+    /**
+     * @param directory The directory in which to store Templates.
+     * @param factoryClassName The class name of the TransformerFactory that
+     *        compiles the Templates.
+     */
+    TemplatesStore(File directory, String factoryClassName) {
+        this.directory = directory;
+        this.compatibilityKey = factoryClassName + " " + System.getProperty("java.vm.vendor")
+                + " " + System.getProperty("java.version");
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     *  Returns the stored Templates for the given stylesheet, or null if no
+     *  Templates are stored for the stylesheet or they are out of date.
+     *
+     *  @param systemId The systemId of the stylesheet.
+     *  @param source The content of the stylesheet.
+     */
+    Loaded load(String systemId, byte[] source) {
+        File file = getFile(systemId);
+        if (! file.isFile()) {
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new TemplatesInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION
+                    || ! compatibilityKey.equals(in.readUTF())
+                    || ! systemId.equals(in.readUTF())
+                    || ! hash(source).equals(in.readUTF())) {
+                return null;
+            }
+            int count = in.readInt();
+            List<URL> dependencies = new ArrayList<URL>(count);
+            for (int i = 0; i < count; i++) {
+                URL url = new URL(in.readUTF());
+                if (! hash(url).equals(in.readUTF())) {
+                    return null;
+                }
+                dependencies.add(url);
+            }
+            Templates templates = (Templates) in.readObject();
+            return new Loaded(templates, dependencies);
+        } catch (Exception e) {
+            log.warn("Unable to load stored Templates for '" + systemId + "' from " + file, e);
+            return null;
+        } finally {
+            try { if(in != null) in.close(); } catch (Exception e) { /* no op */ }
+        }
+    }
+
+    /**
+     *  Stores the Templates for the given stylesheet, if the Templates are
+     *  Serializable.
+     *
+     *  @param systemId The systemId of the stylesheet.
+     *  @param source The content of the stylesheet.
+     *  @param templates The compiled stylesheet.
+     *  @param dependencies The stylesheets included or imported by the stylesheet.
+     */
+    void store(String systemId, byte[] source, Templates templates, List<URL> dependencies) {
+        if (! (templates instanceof Serializable)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Not storing Templates for '" + systemId + "'; "
+                        + templates.getClass().getName() + " is not Serializable");
+            }
+            return;
+        }
+        File file = getFile(systemId);
+        File tmp = null;
+        ObjectOutputStream out = null;
+        try {
+            directory.mkdirs();
+            tmp = File.createTempFile("tmp", SUFFIX, directory);
+            out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(compatibilityKey);
+            out.writeUTF(systemId);
+            out.writeUTF(hash(source));
+            out.writeInt(dependencies.size());
+            for (URL url : dependencies) {
+                out.writeUTF(url.toExternalForm());
+                out.writeUTF(hash(url));
+            }
+            out.writeObject(templates);
+            out.close();
+            out = null;
+            // replace atomically where supported
+            if (! tmp.renameTo(file) && ! (file.delete() && tmp.renameTo(file))) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+            tmp = null;
+        } catch (Exception e) {
+            // XSLTC Templates having auxiliary classes are not Serializable
+            log.warn("Unable to store Templates for '" + systemId + "' to " + file, e);
+        } finally {
+            try { if(out != null) out.close(); } catch (Exception e) { /* no op */ }
+            if (null != tmp) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private File getFile(String systemId) {
+        return new File(directory, hash(toBytes(systemId)) + SUFFIX);
+    }
+
+    static String hash(URL url) throws IOException {
+        InputStream in = url.openStream();
+        try {
+            return hash(readFully(in));
+        } finally {
+            try { in.close(); } catch (Exception e) { /* no op */ }
+        }
+    }
+
+    static String hash(byte[] bytes) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is required to be supported
+            throw new Error(e);
+        }
+        byte[] digest = md.digest(bytes);
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException e) {
+            // UTF-8 is required to be supported
+            throw new Error(e);
+        }
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     *  Deserializes only <code>Templates</code> implementations and the
+     *  classes in <code>ALLOWED_CLASSES</code>.  Classes are loaded without
+     *  being initialized, and rejected before any instance is created.
+     */
+    private static final class TemplatesInputStream extends ObjectInputStream {
+        TemplatesInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (ALLOWED_CLASSES.contains(name)) {
+                return super.resolveClass(desc);
+            }
+            Class<?> c = super.resolveClass(desc);
+            if (! Templates.class.isAssignableFrom(c)) {
+                throw new InvalidClassException(name, "Not allowed in stored Templates");
+            }
+            return c;
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+            throw new InvalidClassException("Proxy classes are not allowed in stored Templates");
+        }
+    }
+
+    static final class Loaded {
+        final Templates templates;
+        final List<URL> dependencies;
+
+        Loaded(Templates templates, List<URL> dependencies) {
+            this.templates = templates;
+            this.dependencies = dependencies;
+        }
+    }
+
+}
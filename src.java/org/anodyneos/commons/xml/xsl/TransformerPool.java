@@ -0,0 +1,146 @@
+package org.anodyneos.commons.xml.xsl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+
+/**
+ *  A bounded pool of <code>Transformer</code>s for a single
+ *  <code>Templates</code>, for use when creating a new
+ *  <code>Transformer</code> is a significant part of the cost of a small
+ *  transformation.  Obtain pools from
+ *  <code>TemplatesCache.getTransformerPool()</code>.  This class is thread
+ *  safe and does not block; if no idle <code>Transformer</code> is available,
+ *  a new one is created.
+ *
+ *  <p>
+ *      Borrowed <code>Transformer</code>s are configured with the
+ *      <code>TemplatesCache</code>'s current <code>ErrorListener</code> and
+ *      <code>UnifiedResolver</code>.  Released <code>Transformer</code>s are
+ *      <code>reset()</code>, clearing parameters and output properties.  A
+ *      <code>Transformer</code> must not be used after it is released, and
+ *      must only be released to the pool it was borrowed from.
+ *  </p>
+ *  <p>
+ *      Usage:
+ *  </p>
+ *  <pre>
+ *      TransformerPool pool = templatesCache.getTransformerPool(uri);
+ *      Transformer t = pool.borrowTransformer();
+ *      try {
+ *          t.setParameter("name", value);
+ *          t.transform(source, result);
+ *      } finally {
+ *          pool.releaseTransformer(t);
+ *      }
+ *  </pre>
+ */
+public class TransformerPool {
+
+    public static final int DEFAULT_MAX_IDLE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final Templates templates;
+    private final TemplatesCacheImpl templatesCache;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<Transformer> idle = new ConcurrentLinkedQueue<Transformer>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+
+    TransformerPool(Templates templates, TemplatesCacheImpl templatesCache, int maxIdle) {
+        this.templates = templates;
+        this.templatesCache = templatesCache;
+        this.maxIdle = maxIdle;
+    }
+
+    public Templates getTemplates() {
+        return templates;
+    }
+
+    /**
+     * Returns an idle <code>Transformer</code>, or a new one if none are idle.
+     *
+     * @return The Transformer.
+     * @throws TransformerConfigurationException if a new Transformer cannot
+     *         be created.
+     */
+    public Transformer borrowTransformer() throws TransformerConfigurationException {
+        borrowCount.incrementAndGet();
+        Transformer t = idle.poll();
+        if (null != t) {
+            idleCount.decrementAndGet();
+            hitCount.incrementAndGet();
+        } else {
+            t = templatesCache.newTransformer(templates);
+        }
+        ErrorListener errorListener = templatesCache.getErrorListener();
+        if (null != errorListener) {
+            t.setErrorListener(errorListener);
+        }
+        t.setURIResolver(templatesCache.getUnifiedResolver());
+        return t;
+    }
+
+    /**
+     * Resets the <code>Transformer</code> and returns it to the pool, or
+     * discards it if the pool already has <code>maxIdle</code> idle
+     * Transformers.
+     *
+     * @param t The Transformer, which must have been borrowed from this pool.
+     */
+    public void releaseTransformer(Transformer t) {
+        if (null == t || idleCount.get() >= maxIdle) {
+            return;
+        }
+        try {
+            t.reset();
+            t.clearParameters();
+        } catch (UnsupportedOperationException e) {
+            // cannot be reset; discard
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+        } else {
+            idle.offer(t);
+        }
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * @return The number of times a Transformer has been borrowed.
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * @return The number of times a borrowed Transformer was reused rather
+     *         than created.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The fraction of borrowed Transformers that were reused, or zero
+     *         if none have been borrowed.
+     */
+    public double getHitRate() {
+        long borrows = borrowCount.get();
+        return borrows == 0 ? 0 : (double) hitCount.get() / borrows;
+    }
+
+}
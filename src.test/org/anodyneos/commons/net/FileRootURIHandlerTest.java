@@ -0,0 +1,136 @@
+package org.anodyneos.commons.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.anodyneos.commons.xml.UnifiedResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+public class FileRootURIHandlerTest {
+
+    private File dir;
+    private FileRootURIHandler handler;
+    private UnifiedResolver resolver;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("FileRootURIHandlerTest", "");
+        dir.delete();
+        new File(dir, "root/sub").mkdirs();
+        write(new File(dir, "secret.txt"), "secret");
+        write(new File(dir, "root/sub/a.xml"), "<a/>");
+        handler = new FileRootURIHandler(new File(dir, "root"));
+        resolver = new UnifiedResolver(false);
+        resolver.addProtocolHandler("res", handler);
+    }
+
+    @After
+    public void tearDown() {
+        new File(dir, "root/sub/a.xml").delete();
+        new File(dir, "root/sub").delete();
+        new File(dir, "root").delete();
+        new File(dir, "secret.txt").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void readsAndMapsFiles() throws Exception {
+        assertEquals("<a/>", read(handler.openStream(new URI("res:/sub/a.xml"))));
+        handler.setMapThreshold(0);
+        assertEquals("<a/>", read(handler.openStream(new URI("res:/sub/./a.xml"))));
+        assertNull(handler.openStream(new URI("res:/sub/missing.xml")));
+        assertNull(handler.openStream(new URI("res:/sub")));
+    }
+
+    @Test
+    public void rejectsPathsLeavingRoot() throws Exception {
+        assertNull(handler.toFile(new URI("res:/../secret.txt")));
+        assertNull(handler.toFile(new URI("res:/%2E%2E/secret.txt")));
+        assertNull(handler.openStream(new URI("res:/sub/../../secret.txt")));
+    }
+
+    @Test
+    public void rejectsEncodedTraversal() throws Exception {
+        String[] uris = {
+                "res:/%2E%2E/secret.txt",
+                "res:/%2e%2e/secret.txt",
+                "res:/.%2E/secret.txt",
+                "res:/%2E./secret.txt",
+                "res:/..%2Fsecret.txt",
+                "res:/..%2fsecret.txt",
+                "res:/..%5Csecret.txt",
+                "res:/sub/%2E%2E/%2E%2E/secret.txt",
+                "res:/%2E/sub/a.xml",
+                "res:/sub/a.xml%00.txt",
+        };
+        for (String uri : uris) {
+            assertNull(uri, handler.toFile(new URI(uri)));
+            assertNull(uri, handler.toURL(new URI(uri)));
+            assertNull(uri, handler.openStream(new URI(uri)));
+        }
+        // other encoded characters are decoded
+        assertEquals(new File(dir, "root/sub/a b.xml"), handler.toFile(new URI("res:/sub/a%20b.xml")));
+        assertEquals("<a/>", read(handler.openStream(new URI("res:/s%75b/a.xml"))));
+    }
+
+    @Test
+    public void resolverReadsThroughHandler() throws Exception {
+        StreamSource source = (StreamSource) resolver.resolve("a.xml", "res:/sub/b.xsl");
+        assertTrue(source.getInputStream() instanceof ByteBufferInputStream);
+        assertEquals("res:/sub/a.xml", source.getSystemId());
+        assertEquals("<a/>", read(source.getInputStream()));
+
+        InputSource entity = resolver.resolveEntity(null, "res:/sub/a.xml");
+        assertTrue(entity.getByteStream() instanceof ByteBufferInputStream);
+        assertEquals("res:/sub/a.xml", entity.getSystemId());
+        assertEquals("<a/>", read(entity.getByteStream()));
+    }
+
+    @Test
+    public void resolverReadsThroughHandlerWithResolutionCache() throws Exception {
+        resolver.setResolutionCacheSize(100);
+        for (int i = 0; i < 2; i++) {
+            StreamSource source = (StreamSource) resolver.resolve("a.xml", "res:/sub/b.xsl");
+            assertTrue(source.getInputStream() instanceof ByteBufferInputStream);
+            assertEquals("<a/>", read(source.getInputStream()));
+
+            InputSource entity = resolver.resolveEntity(null, "res:/sub/a.xml");
+            assertTrue(entity.getByteStream() instanceof ByteBufferInputStream);
+            assertEquals("<a/>", read(entity.getByteStream()));
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int c = in.read(); c != -1; c = in.read()) {
+                sb.append((char) c);
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package org.anodyneos.commons.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexedClassLoaderURIHandlerTest {
+
+    private File jar;
+    private IndexedClassLoaderURIHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        jar = File.createTempFile("IndexedClassLoaderURIHandlerTest", ".jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new JarEntry("sub/"));
+            out.putNextEntry(new JarEntry("sub/a.xml"));
+            out.write("<a/>".getBytes("UTF-8"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        ClassLoader cl = new URLClassLoader(new URL[] {jar.toURI().toURL()}, null);
+        handler = new IndexedClassLoaderURIHandler(cl, "sub");
+    }
+
+    @After
+    public void tearDown() {
+        handler.reindex();
+        jar.delete();
+    }
+
+    @Test
+    public void readsIndexedEntries() throws Exception {
+        assertEquals("<a/>", read(handler.openStream(new URI("cp:/sub/a.xml"))));
+        assertNull(handler.openStream(new URI("cp:/sub/missing.xml")));
+        assertEquals(1, handler.getIndexSize());
+        assertEquals(1, handler.getOpenJarFileCount());
+
+        handler.close();
+        assertEquals(0, handler.getOpenJarFileCount());
+        assertEquals("<a/>", read(handler.openStream(new URI("cp:/sub/a.xml"))));
+        assertEquals(1, handler.getOpenJarFileCount());
+    }
+
+    @Test
+    public void reindexDoesNotLeakJarFiles() throws Exception {
+        final URI uri = new URI("cp:/sub/a.xml");
+        // the class loader keeps its own handle open once indexed
+        handler.getIndexSize();
+        handler.reindex();
+        int baseline = countOpenDescriptors(jar);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (! done.get()) {
+                            // streams being read may fail when their jar file is closed
+                            InputStream in = handler.openStream(uri);
+                            assertNotNull(in);
+                            in.close();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (int i = 0; i < 200; i++) {
+            handler.reindex();
+            Thread.sleep(1);
+        }
+        done.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(failure.get());
+
+        handler.reindex();
+        assertEquals(0, handler.getOpenJarFileCount());
+        assertEquals(baseline, countOpenDescriptors(jar));
+    }
+
+    /**
+     * @return The number of file descriptors of this process open on the
+     *         file, or 0 if they cannot be listed.
+     */
+    private static int countOpenDescriptors(File file) throws IOException {
+        File[] fds = new File("/proc/self/fd").listFiles();
+        if (null == fds) {
+            return 0;
+        }
+        String path = file.getCanonicalPath();
+        int count = 0;
+        for (File fd : fds) {
+            try {
+                if (path.equals(fd.getCanonicalPath())) {
+                    count++;
+                }
+            } catch (IOException e) {
+                // closed while listing
+            }
+        }
+        return count;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        assertNotNull(in);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int c = in.read(); c != -1; c = in.read()) {
+                sb.append((char) c);
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+}
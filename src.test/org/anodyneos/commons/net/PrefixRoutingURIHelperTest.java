@@ -0,0 +1,149 @@
+package org.anodyneos.commons.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.anodyneos.commons.xml.UnifiedResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrefixRoutingURIHelperTest {
+
+    private PrefixRoutingURIHelper helper;
+
+    @Before
+    public void setUp() {
+        helper = new PrefixRoutingURIHelper();
+        helper.addRoute("res", null, "/", new NamedHandler("default"), false);
+        helper.addRoute("res", null, "/tenants/acme", new NamedHandler("acme"), true);
+        helper.addRoute("res", "host", "/tenants", new NamedHandler("host"), false);
+    }
+
+    @Test
+    public void routesByLongestPrefix() throws Exception {
+        assertEquals("acme res:/xsl/page.xsl", read("res:/tenants/acme/xsl/page.xsl"));
+        assertEquals("acme res:/", read("res:/tenants/acme"));
+        assertEquals("default res:/tenants/acmex/page.xsl", read("res:/tenants/acmex/page.xsl"));
+        assertEquals("default res:/tenants/other/page.xsl", read("res:/tenants/other/page.xsl"));
+        assertEquals("acme RES:/page.xsl?q#f", read("RES:/tenants/./acme/page.xsl?q#f"));
+        assertNull(helper.openStream(new URI("other:/tenants/acme/page.xsl")));
+    }
+
+    @Test
+    public void routesByAuthority() throws Exception {
+        assertEquals("host res://host/tenants/acme/page.xsl", read("res://host/tenants/acme/page.xsl"));
+        assertEquals("acme res://other/page.xsl", read("res://other/tenants/acme/page.xsl"));
+        assertEquals("default res://host/page.xsl", read("res://host/page.xsl"));
+    }
+
+    @Test
+    public void removesRoutes() throws Exception {
+        assertTrue(helper.removeRoute("res", null, "/tenants/acme/"));
+        assertFalse(helper.removeRoute("res", null, "/tenants/acme"));
+        assertEquals("default res:/tenants/acme/page.xsl", read("res:/tenants/acme/page.xsl"));
+    }
+
+    @Test
+    public void rejectsPathsLeavingRoot() throws Exception {
+        assertNull(helper.openStream(new URI("res:/../page.xsl")));
+        // routes that do not strip their prefix pass URIs unchanged
+        assertEquals("default res:/tenants/acme/../../page.xsl", read("res:/tenants/acme/../../page.xsl"));
+        assertEquals("acme res:/page.xsl", read("res:/tenants/acme/xsl/../page.xsl"));
+    }
+
+    @Test
+    public void rejectsEncodedTraversal() throws Exception {
+        String[] uris = {
+                "res:/tenants/acme/%2E%2E/%2E%2E/secret.txt",
+                "res:/tenants/acme/%2e%2e/other/page.xsl",
+                "res:/tenants/acme/.%2E/page.xsl",
+                "res:/tenants/acme/..%2Fother/page.xsl",
+                "res:/tenants/acme/..%5Cother/page.xsl",
+                "res:/tenants/acme/%2E/page.xsl",
+        };
+        for (String uri : uris) {
+            assertNull(uri, helper.openStream(new URI(uri)));
+            assertNull(uri, helper.toURL(new URI(uri)));
+            assertNull(uri, helper.openConnection(new URI(uri)));
+        }
+    }
+
+    @Test
+    public void resolvesThroughUnifiedResolver() throws Exception {
+        UnifiedResolver resolver = new UnifiedResolver(false);
+        resolver.addProtocolHandler("res", helper);
+        StreamSource source = (StreamSource) resolver.resolve("page.xsl", "res:/tenants/acme/xsl/main.xsl");
+        assertEquals("res:/tenants/acme/xsl/page.xsl", source.getSystemId());
+        assertEquals("acme res:/xsl/page.xsl", read(source.getInputStream()));
+        assertEquals("acme res:/xsl/page.xsl", read(resolver.openStream(new URI("res:/tenants/acme/xsl/page.xsl"))));
+    }
+
+    private String read(String uri) throws Exception {
+        return read(helper.openStream(new URI(uri)));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int c = in.read(); c != -1; c = in.read()) {
+                sb.append((char) c);
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     *  Serves the handler's name and the URI it was given.
+     */
+    private static final class NamedHandler implements URIHandler {
+        private final String name;
+
+        NamedHandler(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public URLConnection openConnection(final URI uri) {
+            return new URLConnection(toURL(uri)) {
+                @Override
+                public void connect() {
+                    connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() {
+                    return openStream(uri);
+                }
+            };
+        }
+
+        @Override
+        public InputStream openStream(URI uri) {
+            return new ByteArrayInputStream((name + " " + uri).getBytes());
+        }
+
+        @Override
+        public URL toURL(URI uri) {
+            try {
+                return new URL("file:/" + name + uri.getRawPath());
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+    }
+
+}
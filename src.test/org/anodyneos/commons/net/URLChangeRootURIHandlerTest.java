@@ -0,0 +1,79 @@
+package org.anodyneos.commons.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class URLChangeRootURIHandlerTest {
+
+    private File dir;
+    private URLChangeRootURIHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("URLChangeRootURIHandlerTest", "");
+        dir.delete();
+        new File(dir, "root/sub").mkdirs();
+        write(new File(dir, "secret.txt"));
+        write(new File(dir, "root/a.xml"));
+        handler = new URLChangeRootURIHandler(new File(dir, "root").toURI().toURL());
+    }
+
+    @After
+    public void tearDown() {
+        new File(dir, "root/a.xml").delete();
+        new File(dir, "root/sub").delete();
+        new File(dir, "root").delete();
+        new File(dir, "secret.txt").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void resolvesBelowRoot() throws Exception {
+        String root = handler.getRootURL().toExternalForm();
+        assertEquals(root + "a.xml", String.valueOf(handler.toURL(new URI("x:/a.xml"))));
+        assertEquals(root + "a.xml", String.valueOf(handler.toURL(new URI("x:/sub/../a.xml"))));
+        assertEquals(root + "a.xml?q#f", String.valueOf(handler.toURL(new URI("x:/./a.xml?q#f"))));
+        assertEquals(root + "sp%20ace.xml", String.valueOf(handler.toURL(new URI("x:/sp%20ace.xml"))));
+    }
+
+    @Test
+    public void rejectsDotSegmentsLeavingRoot() throws Exception {
+        assertNull(handler.toURL(new URI("x:/../secret.txt")));
+        assertNull(handler.toURL(new URI("x:/sub/../../secret.txt")));
+    }
+
+    @Test
+    public void rejectsEncodedTraversal() throws Exception {
+        String[] uris = {
+                "x:/%2E%2E/secret.txt",
+                "x:/%2e%2e/secret.txt",
+                "x:/.%2E/secret.txt",
+                "x:/%2E./secret.txt",
+                "x:/..%2Fsecret.txt",
+                "x:/..%2fsecret.txt",
+                "x:/..%5Csecret.txt",
+                "x:/sub/%2E%2E/%2E%2E/secret.txt",
+                "x:/%2E/a.xml",
+        };
+        for (String uri : uris) {
+            assertNull(uri, handler.toURL(new URI(uri)));
+            assertNull(uri, handler.openStream(new URI(uri)));
+        }
+    }
+
+    private static void write(File file) throws IOException {
+        FileWriter w = new FileWriter(file);
+        w.write("<x/>");
+        w.close();
+    }
+
+}
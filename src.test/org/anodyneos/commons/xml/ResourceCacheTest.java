@@ -0,0 +1,47 @@
+package org.anodyneos.commons.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ResourceCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsedToLowWaterMark() throws Exception {
+        ResourceCache cache = new ResourceCache(100, 100, Collections.<String>emptySet());
+        for (int i = 0; i < 10; i++) {
+            put(cache, "k" + i);
+        }
+        assertEquals(100, cache.size());
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(cache.get("k" + i));
+        }
+
+        put(cache, "k10");
+        assertEquals(90, cache.size());
+        assertNull(cache.get("k5"));
+        assertNull(cache.get("k6"));
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(cache.get("k" + i));
+        }
+        for (int i = 7; i <= 10; i++) {
+            assertNotNull(cache.get("k" + i));
+        }
+
+        // no eviction while below the limit
+        put(cache, "k11");
+        assertEquals(100, cache.size());
+    }
+
+    private static void put(ResourceCache cache, String key) throws Exception {
+        cache.read(key, new ByteArrayInputStream(new byte[10]), 10).close();
+        // distinct access times
+        Thread.sleep(1);
+    }
+
+}
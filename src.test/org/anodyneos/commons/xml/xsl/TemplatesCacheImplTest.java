@@ -0,0 +1,494 @@
+package org.anodyneos.commons.xml.xsl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TemplatesHandler;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.anodyneos.commons.net.URLChangeRootURIHandler;
+import org.anodyneos.commons.xml.UnifiedResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLFilter;
+import org.xml.sax.XMLReader;
+
+public class TemplatesCacheImplTest {
+
+    private static final String STYLESHEET_START =
+            "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+            + "<xsl:output method='text'/>";
+    private static final String STYLESHEET_END = "</xsl:stylesheet>";
+
+    private File dir;
+    private TemplatesCacheImpl cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("TemplatesCacheImplTest", "");
+        dir.delete();
+        dir.mkdir();
+        UnifiedResolver resolver = new UnifiedResolver();
+        resolver.addProtocolHandler("file", new URLChangeRootURIHandler(new URL("file:/")));
+        cache = new TemplatesCacheImpl();
+        cache.setUnifiedResolver(resolver);
+        cache.setDeduplicationEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void sharesIdenticalStylesheets() throws Exception {
+        String xsl = STYLESHEET_START + "<xsl:template match='/'>X</xsl:template>" + STYLESHEET_END;
+        write("t1/page.xsl", xsl);
+        write("t2/page.xsl", xsl);
+
+        TransformerPool p1 = pool("t1/page.xsl");
+        TransformerPool p2 = pool("t2/page.xsl");
+        assertSame(p1.getTemplates(), p2.getTemplates());
+        assertEquals(1, cache.getStatistics().getSharedCount());
+    }
+
+    @Test
+    public void doesNotShareDocumentFunctionAcrossDirectories() throws Exception {
+        String xsl = STYLESHEET_START
+                + "<xsl:template match='/'><xsl:value-of select=\"document('data.xml')/d\"/></xsl:template>"
+                + STYLESHEET_END;
+        write("t1/page.xsl", xsl);
+        write("t1/data.xml", "<d>ONE</d>");
+        write("t2/page.xsl", xsl);
+        write("t2/data.xml", "<d>TWO</d>");
+
+        TransformerPool p1 = pool("t1/page.xsl");
+        TransformerPool p2 = pool("t2/page.xsl");
+        assertNotSame(p1.getTemplates(), p2.getTemplates());
+        assertEquals("ONE", transform(p1));
+        assertEquals("TWO", transform(p2));
+    }
+
+    @Test
+    public void doesNotShareIncludedDocumentFunctionAcrossDirectories() throws Exception {
+        String xsl = STYLESHEET_START + "<xsl:include href='inc/data.xsl'/>" + STYLESHEET_END;
+        String inc = STYLESHEET_START
+                + "<xsl:template match='/'><xsl:value-of select=\"document('data.xml')/d\"/></xsl:template>"
+                + STYLESHEET_END;
+        write("t1/page.xsl", xsl);
+        write("t1/inc/data.xsl", inc);
+        write("t1/inc/data.xml", "<d>ONE</d>");
+        write("t2/page.xsl", xsl);
+        write("t2/inc/data.xsl", inc);
+        write("t2/inc/data.xml", "<d>TWO</d>");
+
+        TransformerPool p1 = pool("t1/page.xsl");
+        TransformerPool p2 = pool("t2/page.xsl");
+        assertEquals("ONE", transform(p1));
+        assertEquals("TWO", transform(p2));
+    }
+
+    @Test
+    public void sharesDocumentFunctionWithinDirectory() throws Exception {
+        String xsl = STYLESHEET_START
+                + "<xsl:template match='/'><xsl:value-of select=\"document('data.xml')/d\"/></xsl:template>"
+                + STYLESHEET_END;
+        write("t1/a.xsl", xsl);
+        write("t1/b.xsl", xsl);
+        write("t1/data.xml", "<d>ONE</d>");
+
+        TransformerPool p1 = pool("t1/a.xsl");
+        TransformerPool p2 = pool("t1/b.xsl");
+        assertSame(p1.getTemplates(), p2.getTemplates());
+        assertEquals("ONE", transform(p2));
+    }
+
+    @Test
+    public void boundsCompileStats() throws Exception {
+        String xsl = STYLESHEET_START + "<xsl:template match='/'>X</xsl:template>" + STYLESHEET_END;
+        int count = TemplatesCacheImpl.MAX_COMPILE_STATS + 10;
+        for (int i = 0; i < count; i++) {
+            cache.getTransformerPool(new StreamSource(new StringReader(xsl), "x:/" + i + ".xsl"));
+        }
+        TemplatesCacheStats stats = cache.getStatistics();
+        assertEquals(count, stats.getCompileCount());
+        assertTrue(stats.getCompileStats().size() <= TemplatesCacheImpl.MAX_COMPILE_STATS);
+        // the most recently compiled are kept
+        assertTrue(stats.getCompileStats().containsKey("x:/" + (count - 1) + ".xsl"));
+        assertFalse(stats.getCompileStats().containsKey("x:/0.xsl"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedInBatches() throws Exception {
+        String xsl = STYLESHEET_START + "<xsl:template match='/'>X</xsl:template>" + STYLESHEET_END;
+        cache.setDeduplicationEnabled(false);
+        cache.setMaxCacheEntries(10);
+        for (int i = 0; i < 10; i++) {
+            write(i + ".xsl", xsl);
+            pool(i + ".xsl");
+            Thread.sleep(1);
+        }
+        // 0.xsl becomes the most recently used
+        pool("0.xsl");
+        assertEquals(0, cache.getEvictionCount());
+
+        write("10.xsl", xsl);
+        pool("10.xsl");
+        assertEquals(9, cache.getCacheSize());
+        assertEquals(2, cache.getEvictionCount());
+        long compiles = cache.getStatistics().getCompileCount();
+        pool("0.xsl");
+        pool("3.xsl");
+        assertEquals(compiles, cache.getStatistics().getCompileCount());
+        pool("1.xsl");
+        assertEquals(compiles + 1, cache.getStatistics().getCompileCount());
+    }
+
+    @Test
+    public void compilesOncePerStylesheet() throws Exception {
+        final String[] paths = {"page0.xsl", "page1.xsl", "page2.xsl", "page3.xsl", "bad.xsl"};
+        for (int i = 0; i < paths.length - 1; i++) {
+            write(paths[i], STYLESHEET_START + "<xsl:template match='/'>" + i + "</xsl:template>" + STYLESHEET_END);
+        }
+        write("bad.xsl", STYLESHEET_START + "<xsl:template match='/'>");
+        final CountingTransformerFactory factory = new CountingTransformerFactory();
+        factory.delay = 200;
+        cache.setTransformerFactory(factory);
+        int threadsPerPath = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<List<Future<TransformerPool>>> results = new ArrayList<List<Future<TransformerPool>>>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadsPerPath * paths.length);
+        try {
+            for (final String path : paths) {
+                List<Future<TransformerPool>> pathResults = new ArrayList<Future<TransformerPool>>();
+                for (int i = 0; i < threadsPerPath; i++) {
+                    pathResults.add(executor.submit(new Callable<TransformerPool>() {
+                        @Override
+                        public TransformerPool call() throws Exception {
+                            start.await();
+                            return pool(path);
+                        }
+                    }));
+                }
+                results.add(pathResults);
+            }
+            start.countDown();
+            for (int i = 0; i < paths.length - 1; i++) {
+                Templates templates = results.get(i).get(0).get().getTemplates();
+                for (Future<TransformerPool> result : results.get(i)) {
+                    assertSame(templates, result.get().getTemplates());
+                }
+            }
+            for (Future<TransformerPool> result : results.get(paths.length - 1)) {
+                try {
+                    result.get();
+                    fail("compiled bad.xsl");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof TransformerConfigurationException);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (String path : paths) {
+            assertEquals(path, 1, factory.count(new File(dir, path).toURI()));
+        }
+        assertEquals(paths.length, factory.count.get());
+
+        // the failed compilation is not left in flight
+        try {
+            pool("bad.xsl");
+            fail("compiled bad.xsl");
+        } catch (TransformerConfigurationException e) {
+            // expected
+        }
+        assertEquals(2, factory.count(new File(dir, "bad.xsl").toURI()));
+        write("bad.xsl", STYLESHEET_START + "<xsl:template match='/'>fixed</xsl:template>" + STYLESHEET_END);
+        assertEquals("fixed", transform(pool("bad.xsl")));
+        assertEquals(3, factory.count(new File(dir, "bad.xsl").toURI()));
+    }
+
+    @Test
+    public void reloadedTemplatesResolveThroughUnifiedResolver() throws Exception {
+        write("res/data.xml", "<d>FROM-RES</d>");
+        write("page.xsl", STYLESHEET_START
+                + "<xsl:template match='/'><xsl:value-of select=\"document('res:/data.xml')/d\"/></xsl:template>"
+                + STYLESHEET_END);
+        File store = new File(dir, "store");
+        URI uri = new File(dir, "page.xsl").toURI();
+
+        CountingTransformerFactory factory = new CountingTransformerFactory();
+        TemplatesCacheImpl first = newPersistentCache(store, factory);
+        assertEquals("FROM-RES", transform(first.getTransformerHandler(uri)));
+        assertEquals(1, factory.count.get());
+
+        // a fresh cache reloads the stored Templates rather than compiling
+        factory = new CountingTransformerFactory();
+        TemplatesCacheImpl second = newPersistentCache(store, factory);
+        assertEquals("FROM-RES", transform(second.getTransformerHandler(uri)));
+        assertEquals("FROM-RES", transform(second.getXMLFilter(uri)));
+        assertEquals("FROM-RES", transform(second.getTransformerPool(uri)));
+        assertEquals(0, factory.count.get());
+    }
+
+    @Test
+    public void storeLoadsOnlyTemplatesClasses() throws Exception {
+        TemplatesStore store = new TemplatesStore(new File(dir, "store"), "factory");
+        byte[] source = "<x/>".getBytes("UTF-8");
+        List<URL> none = Collections.emptyList();
+
+        store.store("a.xsl", source, new PayloadTemplates(null), none);
+        assertNotNull(store.load("a.xsl", source));
+
+        store.store("b.xsl", source, new PayloadTemplates(new ArrayList<String>()), none);
+        assertNull(store.load("b.xsl", source));
+    }
+
+    private TemplatesCacheImpl newPersistentCache(File store, TransformerFactory factory) throws Exception {
+        UnifiedResolver resolver = new UnifiedResolver();
+        resolver.addProtocolHandler("file", new URLChangeRootURIHandler(new URL("file:/")));
+        resolver.addProtocolHandler("res", new URLChangeRootURIHandler(new File(dir, "res").toURI().toURL()));
+        TemplatesCacheImpl c = new TemplatesCacheImpl();
+        c.setTransformerFactory(factory);
+        c.setUnifiedResolver(resolver);
+        c.setPersistentCacheDirectory(store);
+        return c;
+    }
+
+    private TransformerPool pool(String path) throws Exception {
+        return cache.getTransformerPool(new File(dir, path).toURI());
+    }
+
+    private static String transform(TransformerPool pool) throws Exception {
+        Transformer t = pool.borrowTransformer();
+        try {
+            StringWriter out = new StringWriter();
+            t.transform(new StreamSource(new StringReader("<r/>")), new StreamResult(out));
+            return out.toString().trim();
+        } finally {
+            pool.releaseTransformer(t);
+        }
+    }
+
+    private static String transform(TransformerHandler handler) throws Exception {
+        StringWriter out = new StringWriter();
+        handler.setResult(new StreamResult(out));
+        XMLReader reader = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+        reader.setContentHandler(handler);
+        reader.parse(new InputSource(new StringReader("<r/>")));
+        return out.toString().trim();
+    }
+
+    private static String transform(XMLFilter filter) throws Exception {
+        filter.setParent(SAXParserFactory.newInstance().newSAXParser().getXMLReader());
+        StringWriter out = new StringWriter();
+        Transformer identity = TransformerFactory.newInstance().newTransformer();
+        identity.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        identity.transform(new SAXSource(filter, new InputSource(new StringReader("<r/>"))), new StreamResult(out));
+        return out.toString().trim();
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        FileWriter out = new FileWriter(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     *  Serializable Templates carrying an arbitrary object.
+     */
+    private static final class PayloadTemplates implements Templates, Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Object payload;
+
+        PayloadTemplates(Object payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        public Transformer newTransformer() {
+            throw new UnsupportedOperationException(String.valueOf(payload));
+        }
+
+        @Override
+        public Properties getOutputProperties() {
+            return new Properties();
+        }
+    }
+
+    /**
+     *  Counts calls to <code>newTemplates()</code>, in total and per
+     *  systemId, optionally delaying each to widen the window for concurrent
+     *  requests.
+     */
+    private static final class CountingTransformerFactory extends SAXTransformerFactory {
+        private final SAXTransformerFactory delegate = (SAXTransformerFactory) TransformerFactory.newInstance();
+        private final AtomicInteger count = new AtomicInteger();
+        private final ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+        private volatile long delay;
+
+        int count(URI systemId) {
+            AtomicInteger c = counts.get(systemId.toString());
+            return null == c ? 0 : c.get();
+        }
+
+        @Override
+        public Templates newTemplates(Source source) throws TransformerConfigurationException {
+            count.incrementAndGet();
+            String systemId = String.valueOf(source.getSystemId());
+            counts.putIfAbsent(systemId, new AtomicInteger());
+            counts.get(systemId).incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return delegate.newTemplates(source);
+        }
+
+        @Override
+        public TemplatesHandler newTemplatesHandler() throws TransformerConfigurationException {
+            return delegate.newTemplatesHandler();
+        }
+
+        @Override
+        public Transformer newTransformer(Source source) throws TransformerConfigurationException {
+            return delegate.newTransformer(source);
+        }
+
+        @Override
+        public Transformer newTransformer() throws TransformerConfigurationException {
+            return delegate.newTransformer();
+        }
+
+        @Override
+        public TransformerHandler newTransformerHandler(Source source) throws TransformerConfigurationException {
+            return delegate.newTransformerHandler(source);
+        }
+
+        @Override
+        public TransformerHandler newTransformerHandler(Templates templates)
+        throws TransformerConfigurationException {
+            return delegate.newTransformerHandler(templates);
+        }
+
+        @Override
+        public TransformerHandler newTransformerHandler() throws TransformerConfigurationException {
+            return delegate.newTransformerHandler();
+        }
+
+        @Override
+        public XMLFilter newXMLFilter(Source source) throws TransformerConfigurationException {
+            return delegate.newXMLFilter(source);
+        }
+
+        @Override
+        public XMLFilter newXMLFilter(Templates templates) throws TransformerConfigurationException {
+            return delegate.newXMLFilter(templates);
+        }
+
+        @Override
+        public Source getAssociatedStylesheet(Source source, String media, String title, String charset)
+        throws TransformerConfigurationException {
+            return delegate.getAssociatedStylesheet(source, media, title, charset);
+        }
+
+        @Override
+        public void setURIResolver(URIResolver resolver) {
+            delegate.setURIResolver(resolver);
+        }
+
+        @Override
+        public URIResolver getURIResolver() {
+            return delegate.getURIResolver();
+        }
+
+        @Override
+        public void setFeature(String name, boolean value) throws TransformerConfigurationException {
+            delegate.setFeature(name, value);
+        }
+
+        @Override
+        public boolean getFeature(String name) {
+            return delegate.getFeature(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            delegate.setAttribute(name, value);
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return delegate.getAttribute(name);
+        }
+
+        @Override
+        public void setErrorListener(ErrorListener listener) {
+            delegate.setErrorListener(listener);
+        }
+
+        @Override
+        public ErrorListener getErrorListener() {
+            return delegate.getErrorListener();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+}